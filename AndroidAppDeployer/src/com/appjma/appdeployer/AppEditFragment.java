@@ -28,6 +28,7 @@ import com.actionbarsherlock.view.MenuItem;
 import com.appjma.appdeployer.adapter.ShareAdapter;
 import com.appjma.appdeployer.adapter.ShareAdapter.OnShareDeleteListener;
 import com.appjma.appdeployer.content.AppContract;
+import com.appjma.appdeployer.content.ChangeNotificationScope;
 import com.appunite.helpers.ActionBarCustomHelper;
 import com.appunite.helpers.EditFragment;
 import com.appunite.imageloader.RemoteImageLoader;
@@ -91,6 +92,8 @@ public class AppEditFragment extends EditFragment implements
 		} else {
 			uri = cr.insert(uri, values);
 		}
+		ChangeNotificationScope
+				.announceStructureChanged(AppContract.Apps.CONTENT_URI);
 		return uri;
 	}
 
@@ -101,6 +104,8 @@ public class AppEditFragment extends EditFragment implements
 		values.put(AppContract.Apps.DELETED, true);
 		values.put(AppContract.Apps.SYNCED, false);
 		cr.update(uri, values, null, null);
+		ChangeNotificationScope
+				.announceStructureChanged(AppContract.Apps.CONTENT_URI);
 	}
 
 	@Override
@@ -17,8 +17,6 @@ package com.appjma.appdeployer;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
-import java.util.Map;
-
 import android.content.Intent;
 import android.database.Cursor;
 import android.graphics.Bitmap;
@@ -27,7 +25,6 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -42,11 +39,11 @@ import com.actionbarsherlock.view.MenuInflater;
 import com.actionbarsherlock.view.MenuItem;
 import com.appjma.appdeployer.adapter.AppVersionsAdapter;
 import com.appjma.appdeployer.adapter.AppVersionsAdapter.OnAppVersionDownloadClickListener;
-import com.appjma.appdeployer.adapter.DownloadLoader;
-import com.appjma.appdeployer.adapter.DownloadLoader.DownloadItem;
+import com.appjma.appdeployer.adapter.CoalescingCursorLoader;
 import com.appjma.appdeployer.content.AppContract;
 import com.appjma.appdeployer.helper.ErrorReporter;
 import com.appjma.appdeployer.service.DownloadService;
+import com.appjma.appdeployer.service.SyncScheduler;
 import com.appunite.imageloader.RemoteImageLoader;
 import com.appunite.imageloader.RemoteImageLoader.ImageViewHolder;
 import com.appunite.syncer.AUSyncerStatus;
@@ -59,12 +56,11 @@ public class AppFragment extends SherlockFragment implements
 
 	private static final int LOADER_APP = 0;
 	private static final int LOADER_APP_VERSIONS = 1;
-	private static final int LOADER_DOWNLOADS = 2;
 
 	private static final String[] PROJECTION = new String[] {
 			AppContract.Apps.NAME, AppContract.Apps.IMAGE,
 			AppContract.Apps.NEWEST_VERSION, AppContract.Apps.TOKEN,
-			AppContract.Apps.GUID };
+			AppContract.Apps.GUID, AppContract.Apps.APP_ID };
 
 	private static final int PROJECTION_NAME = 0;
 	private static final int PROJECTION_IMAGE = 1;
@@ -92,41 +88,6 @@ public class AppFragment extends SherlockFragment implements
 	private TextView mAppTokenTextView;
 	private String mGuidFormat;
 	private TextView mAppGuidTextView;
-	private LoaderCallbacks<Map<String, DownloadItem>> mLoaderCallback = new LoaderCallbacks<Map<String, DownloadItem>>() {
-
-		@Override
-		public Loader<Map<String, DownloadItem>> onCreateLoader(int loaderId,
-				Bundle args) {
-			switch (loaderId) {
-			case LOADER_DOWNLOADS:
-				return new DownloadLoader(getActivity());
-			default:
-				throw new RuntimeException("Unknown loader: " + loaderId);
-			}
-		}
-
-		@Override
-		public void onLoadFinished(Loader<Map<String, DownloadItem>> loader,
-				Map<String, DownloadItem> map) {
-			switch (loader.getId()) {
-			case LOADER_DOWNLOADS:
-				mAdapter.setDownloadsMap(map);
-				return;
-			default:
-				throw new RuntimeException("Unknown loader: " + loader.getId());
-			}
-		}
-
-		@Override
-		public void onLoaderReset(Loader<Map<String, DownloadItem>> loader) {
-			switch (loader.getId()) {
-			case LOADER_DOWNLOADS:
-				return;
-			default:
-				throw new RuntimeException("Unknown loader: " + loader.getId());
-			}
-		}
-	};
 	private ErrorReporter mErrorReporter;
 
 	@Override
@@ -165,8 +126,7 @@ public class AppFragment extends SherlockFragment implements
 				placeHolder, IMAGE_SIZE_DP, IMAGE_SIZE_DP);
 
 		mDownloadHelper = new DownloadHelper(getActivity(),
-				DownloadService.ACTION_SYNC, this, Uri.withAppendedPath(mUri,
-						AppContract.AppVersions.CONTENT_PATH));
+				DownloadService.ACTION_SYNC, this, getAppVersionsUri());
 
 		mListView.addHeaderView(createHeaderView(inflater));
 		mAdapter = new AppVersionsAdapter(getActivity(), this);
@@ -174,7 +134,6 @@ public class AppFragment extends SherlockFragment implements
 		LoaderManager lm = getLoaderManager();
 		lm.initLoader(LOADER_APP, null, this);
 		lm.initLoader(LOADER_APP_VERSIONS, null, this);
-		lm.initLoader(LOADER_DOWNLOADS, null, mLoaderCallback);
 
 		setHasOptionsMenu(true);
 
@@ -199,7 +158,9 @@ public class AppFragment extends SherlockFragment implements
 		super.onResume();
 		mRemoteImageLoader.onActivityResume();
 		mDownloadHelper.onActivityResume();
-		mDownloadHelper.startDownloading(null, false);
+		DownloadService.startSync(mDownloadHelper, getAppVersionsUri(),
+				SyncScheduler.PRIORITY_VISIBLE, false);
+		mAdapter.onActivityResume();
 	}
 
 	@Override
@@ -214,6 +175,7 @@ public class AppFragment extends SherlockFragment implements
 		super.onPause();
 		mDownloadHelper.onActivityPause();
 		mRemoteImageLoader.onActivityPause();
+		mAdapter.onActivityPause();
 	}
 
 	@Override
@@ -227,6 +189,10 @@ public class AppFragment extends SherlockFragment implements
 		MenuItem menuRefresh = menu.findItem(R.id.menu_refresh);
 		menuProgress.setVisible(mProgressIndicator);
 		menuRefresh.setVisible(!mProgressIndicator);
+		MenuItem menuInAppDownloads = menu
+				.findItem(R.id.menu_in_app_downloads);
+		menuInAppDownloads.setChecked(new AppPreferences(getActivity())
+				.isInAppDownloads());
 	}
 
 	@Override
@@ -234,11 +200,17 @@ public class AppFragment extends SherlockFragment implements
 		int itemId = item.getItemId();
 		switch (itemId) {
 		case R.id.menu_refresh:
-			mDownloadHelper.startDownloading(null, true);
+			DownloadService.startSync(mDownloadHelper, getAppVersionsUri(),
+					SyncScheduler.PRIORITY_VISIBLE, true);
 			return true;
 		case R.id.menu_edit:
 			startActivity(new Intent(Intent.ACTION_EDIT, mUri));
 			return true;
+		case R.id.menu_in_app_downloads:
+			new AppPreferences(getActivity()).edit()
+					.setInAppDownloads(!item.isChecked()).apply();
+			getActivity().invalidateOptionsMenu();
+			return true;
 		default:
 			return super.onOptionsItemSelected(item);
 		}
@@ -258,20 +230,27 @@ public class AppFragment extends SherlockFragment implements
 		}
 	}
 
+	private Uri getAppVersionsUri() {
+		return Uri.withAppendedPath(mUri, AppContract.AppVersions.CONTENT_PATH);
+	}
+
 	@Override
 	public Loader<Cursor> onCreateLoader(int id, Bundle args) {
 		switch (id) {
 		case LOADER_APP_VERSIONS: {
-			Uri uri = Uri.withAppendedPath(mUri,
-					AppContract.AppVersions.CONTENT_PATH);
-			return new CursorLoader(getActivity(), uri,
-					AppVersionsAdapter.PROJECTION, null, null,
+			return new CoalescingCursorLoader(getActivity(),
+					getAppVersionsUri(), AppVersionsAdapter.PROJECTION, null,
+					null, AppContract.AppVersions.UPDATED_AT).setRowChanges(
+					AppContract.AppVersions.CONTENT_URI,
+					AppContract.AppVersions.APP_VERSION_ID,
 					AppContract.AppVersions.UPDATED_AT);
 		}
 		case LOADER_APP: {
 			Uri uri = mUri.buildUpon().appendQueryParameter("limit", "1")
 					.build();
-			return new CursorLoader(getActivity(), uri, PROJECTION, null, null,
+			return new CoalescingCursorLoader(getActivity(), uri, PROJECTION,
+					null, null, AppContract.Apps.UPDATED_AT).setRowChanges(
+					AppContract.Apps.CONTENT_URI, AppContract.Apps.APP_ID,
 					AppContract.Apps.UPDATED_AT);
 		}
 		default:
@@ -334,7 +313,6 @@ public class AppFragment extends SherlockFragment implements
 		Uri uri = AppContract.AppVersions.CONTENT_URI.buildUpon()
 				.appendPath(String.valueOf(appVersionId))
 				.appendPath(AppContract.Download.CONTENT_PATH).build();
-		DownloadHelper.startAsyncDownload(getActivity(),
-				DownloadService.ACTION_SYNC, uri, null, true);
+		DownloadService.requestSync(getActivity(), uri, null, true);
 	}
 }
@@ -22,8 +22,14 @@ import android.content.SharedPreferences.Editor;
 public class AppPreferences {
 	private static final String PREFERENCES_NAME = "preferences";
 	
-	private static final String PREFERENCE_APPS_NEXT_TOKEN = "apps_next_token";
 	private static final String PREFERENCE_ACCOUNT_NAME = "account_name";
+	// cursors were stored in zone of device before, they are dropped by new
+	// keys
+	private static final String PREFERENCE_APPS_UPDATED_SINCE = "apps_updated_since_utc";
+	private static final String PREFERENCE_APP_VERSIONS_UPDATED_SINCE_PREFIX = "app_versions_updated_since_utc_";
+	private static final String PREFERENCE_IN_APP_DOWNLOADS = "in_app_downloads";
+	private static final String PREFERENCE_APK_STORE_BUDGET = "apk_store_budget";
+	private static final long DEFAULT_APK_STORE_BUDGET = 200 * 1024 * 1024;
 
 	
 	public static class AppEdit {
@@ -34,16 +40,33 @@ public class AppPreferences {
 			mEditor = editor;
 		}
 		
-		public AppEdit setAppsNextToken(String lastToken) {
-			mEditor.putString(PREFERENCE_APPS_NEXT_TOKEN, lastToken);
+		public AppEdit setAppsUpdatedSince(long updatedSince) {
+			mEditor.putLong(PREFERENCE_APPS_UPDATED_SINCE, updatedSince);
 			return this;
 		}
-		
+
+		public AppEdit setAppVersionsUpdatedSince(String appGuid,
+				long updatedSince) {
+			mEditor.putLong(PREFERENCE_APP_VERSIONS_UPDATED_SINCE_PREFIX
+					+ appGuid, updatedSince);
+			return this;
+		}
+
 		public AppEdit setAccountName(String accountName) {
 			mEditor.putString(PREFERENCE_ACCOUNT_NAME, accountName);
 			return this;
 		}
 
+		public AppEdit setInAppDownloads(boolean inAppDownloads) {
+			mEditor.putBoolean(PREFERENCE_IN_APP_DOWNLOADS, inAppDownloads);
+			return this;
+		}
+
+		public AppEdit setApkStoreBudgetBytes(long budget) {
+			mEditor.putLong(PREFERENCE_APK_STORE_BUDGET, budget);
+			return this;
+		}
+
 		public AppEdit clear() {
 			mEditor.clear();
 			return this;
@@ -52,6 +75,13 @@ public class AppPreferences {
 		public boolean commit() {
 			return mEditor.commit();
 		}
+
+		/**
+		 * Like {@link #commit()} but writes to disk asynchronously
+		 */
+		public void apply() {
+			mEditor.apply();
+		}
 		
 	}
 	
@@ -65,11 +95,40 @@ public class AppPreferences {
 		return new AppEdit(mPreferences.edit());
 	}
 	
-	public String getAppsNextToken() {
-		return mPreferences.getString(PREFERENCE_APPS_NEXT_TOKEN, null);
+	/**
+	 * @return newest updated_at of synced apps in UTC or 0 if full sync is
+	 *         needed
+	 */
+	public long getAppsUpdatedSince() {
+		return mPreferences.getLong(PREFERENCE_APPS_UPDATED_SINCE, 0);
+	}
+
+	/**
+	 * @return newest updated_at of synced versions of given app in UTC or 0
+	 *         if full sync is needed
+	 */
+	public long getAppVersionsUpdatedSince(String appGuid) {
+		return mPreferences.getLong(
+				PREFERENCE_APP_VERSIONS_UPDATED_SINCE_PREFIX + appGuid, 0);
 	}
 
 	public String getAccountName() {
 		return mPreferences.getString(PREFERENCE_ACCOUNT_NAME, null);
 	}
+
+	/**
+	 * @return true if APKs should be downloaded by built-in segmented
+	 *         downloader instead of system DownloadManager
+	 */
+	public boolean isInAppDownloads() {
+		return mPreferences.getBoolean(PREFERENCE_IN_APP_DOWNLOADS, false);
+	}
+
+	/**
+	 * @return disk space that could be used by downloaded APKs
+	 */
+	public long getApkStoreBudgetBytes() {
+		return mPreferences.getLong(PREFERENCE_APK_STORE_BUDGET,
+				DEFAULT_APK_STORE_BUDGET);
+	}
 }
@@ -23,7 +23,6 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.widget.CursorAdapter;
 import android.view.LayoutInflater;
@@ -40,9 +39,11 @@ import com.actionbarsherlock.view.MenuInflater;
 import com.actionbarsherlock.view.MenuItem;
 import com.appjma.appdeployer.adapter.AppsAdapter;
 import com.appjma.appdeployer.adapter.AppsAdapter.OnAppDownloadClickListener;
+import com.appjma.appdeployer.adapter.CoalescingCursorLoader;
 import com.appjma.appdeployer.content.AppContract;
 import com.appjma.appdeployer.helper.ErrorReporter;
 import com.appjma.appdeployer.service.DownloadService;
+import com.appjma.appdeployer.service.SyncScheduler;
 import com.appunite.imageloader.RemoteImageLoader;
 import com.appunite.syncer.AUSyncerStatus;
 import com.appunite.syncer.DownloadHelper;
@@ -104,7 +105,9 @@ public class AppsFragment extends SherlockFragment implements
 	public void onResume() {
 		super.onResume();
 		mDownloadHelper.onActivityResume();
-		mDownloadHelper.startDownloading(null, false);
+		DownloadService.startSync(mDownloadHelper,
+				AppContract.Apps.CONTENT_URI, SyncScheduler.PRIORITY_VISIBLE,
+				false);
 		mRemoteImageLoader.onActivityResume();
 	}
 	
@@ -139,7 +142,10 @@ public class AppsFragment extends SherlockFragment implements
 		int itemId = item.getItemId();
 		switch (itemId) {
 		case R.id.menu_refresh:
-			mDownloadHelper.startDownloading(null, true);
+			DownloadService.startSync(mDownloadHelper,
+					AppContract.Apps.CONTENT_URI,
+					SyncScheduler.PRIORITY_VISIBLE, true);
+			startAppVersionsDownloading();
 			return true;
 		case R.id.menu_add:
 			startActivity(new Intent(Intent.ACTION_INSERT_OR_EDIT,
@@ -150,6 +156,16 @@ public class AppsFragment extends SherlockFragment implements
 		}
 	}
 
+	/**
+	 * Fetches versions of every app, one request per app, so it is done only
+	 * when user asks for refresh
+	 */
+	private void startAppVersionsDownloading() {
+		// newest version of every app is shown on the list
+		DownloadService.requestSync(getActivity(),
+				AppContract.AppVersions.CONTENT_URI, null, true);
+	}
+
 	@Override
 	public void onReportStatus(boolean screenVisible, boolean screenEmpty,
 			boolean screenProgress, boolean progressIndicator,
@@ -170,9 +186,11 @@ public class AppsFragment extends SherlockFragment implements
 	public Loader<Cursor> onCreateLoader(int id, Bundle args) {
 		switch (id) {
 		case LOADER_APPS:
-			return new CursorLoader(getActivity(),
+			return new CoalescingCursorLoader(getActivity(),
 					AppContract.Apps.CONTENT_URI, AppsAdapter.PROJECTION,
 					AppContract.Apps.DELETED + " == 0", null,
+					AppContract.Apps.UPDATED_AT).setRowChanges(
+					AppContract.Apps.CONTENT_URI, AppContract.Apps.APP_ID,
 					AppContract.Apps.UPDATED_AT);
 		default:
 			throw new RuntimeException("Unknown laoder id: " + id);
@@ -15,7 +15,10 @@
  */
 package com.appjma.appdeployer.adapter;
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import android.app.DownloadManager;
 import android.content.Context;
@@ -26,33 +29,35 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import com.appjma.appdeployer.R;
-import com.appjma.appdeployer.adapter.DownloadLoader.DownloadItem;
 import com.appjma.appdeployer.content.AppContract;
-import com.google.common.collect.Maps;
 
 public class AppVersionsAdapter extends CursorAdapter implements
-		OnClickListener {
+		OnClickListener, DownloadProgressPoller.Listener {
 
 	public static final String[] PROJECTION = new String[] {
 			AppContract.AppVersions._ID, AppContract.AppVersions.VERSION,
 			AppContract.AppVersions.APP_VERSION_ID,
 			AppContract.AppVersions.UPDATED_AT,
 			AppContract.AppVersions.DOWNLOAD_MANAGER_ID,
-			AppContract.AppVersions.DOWNLOAD_URL};
+			AppContract.AppVersions.DOWNLOAD_URL,
+			AppContract.AppVersions.DOWNLOAD_STATUS };
 	private static final int PROJECTION_VERSION = 1;
 	public static final int PROJECTION_APP_VERSION_ID = 2;
 	public static final int PROJECTION_UPDATED_AT = 3;
 	public static final int PROJECTION_DOWNLOAD_MANAGER_ID = 4;
 	public static final int PROJECTION_DOWNLOAD_URL = 5;
+	private static final int PROJECTION_DOWNLOAD_STATUS = 6;
 
 	private LayoutInflater mInflater;
 	private final OnAppVersionDownloadClickListener mListener;
 	private long mNow;
 	private String mVersionFormat;
-	private Map<String, DownloadItem> mMap = Maps.newHashMap();
+	private final DownloadProgressPoller mProgressPoller;
+	private final Map<Long, ViewHolder> mDownloadHolders = new HashMap<Long, ViewHolder>();
 
 	public static interface OnAppVersionDownloadClickListener {
 
@@ -67,6 +72,7 @@ public class AppVersionsAdapter extends CursorAdapter implements
 		mListener = listener;
 		mInflater = LayoutInflater.from(context);
 		mNow = System.currentTimeMillis();
+		mProgressPoller = new DownloadProgressPoller(context, this);
 	}
 
 	private static class ViewHolder {
@@ -75,6 +81,9 @@ public class AppVersionsAdapter extends CursorAdapter implements
 		public long mId;
 		public View mButton;
 		public int mPosition;
+		public ProgressBar mProgressBar;
+		public long mDownloadId = -1;
+		public boolean mRunning;
 	}
 
 	@Override
@@ -83,18 +92,23 @@ public class AppVersionsAdapter extends CursorAdapter implements
 		String version = cursor.getString(PROJECTION_VERSION);
 		long updatedAt = cursor.getLong(PROJECTION_UPDATED_AT);
 		long id = cursor.getLong(PROJECTION_APP_VERSION_ID);
-		String downloadManagerId = cursor
-				.getString(PROJECTION_DOWNLOAD_MANAGER_ID);
-
-		int status = -1;
-		if (downloadManagerId != null) {
-			DownloadItem downloadItem = mMap.get(downloadManagerId);
-			if (downloadItem != null) {
-				status = downloadItem.mStatus;
-			}
+		int status = cursor.isNull(PROJECTION_DOWNLOAD_STATUS) ? -1 : cursor
+				.getInt(PROJECTION_DOWNLOAD_STATUS);
+		boolean running = isRunning(status);
+		if (mDownloadHolders.get(holder.mDownloadId) == holder) {
+			// view is recycled
+			mDownloadHolders.remove(holder.mDownloadId);
+		}
+		holder.mRunning = running;
+		// built-in downloader does not have download manager id
+		holder.mDownloadId = running
+				&& !cursor.isNull(PROJECTION_DOWNLOAD_MANAGER_ID) ? cursor
+				.getLong(PROJECTION_DOWNLOAD_MANAGER_ID) : -1;
+		if (holder.mDownloadId != -1) {
+			mDownloadHolders.put(holder.mDownloadId, holder);
 		}
-		if (status == DownloadManager.STATUS_PENDING
-				|| status == DownloadManager.STATUS_RUNNING) {
+		bindProgress(holder);
+		if (running) {
 			holder.mButton
 					.setBackgroundResource(R.drawable.ic_list_item_downloading);
 		} else if (status == DownloadManager.STATUS_SUCCESSFUL) {
@@ -123,9 +137,71 @@ public class AppVersionsAdapter extends CursorAdapter implements
 		button.setOnClickListener(this);
 		button.setTag(holder);
 		holder.mButton = button;
+		holder.mProgressBar = (ProgressBar) view
+				.findViewById(R.id.download_progress);
 		return view;
 	}
 
+	private static boolean isRunning(int status) {
+		return status == DownloadManager.STATUS_PENDING
+				|| status == DownloadManager.STATUS_RUNNING;
+	}
+
+	private void bindProgress(ViewHolder holder) {
+		if (!holder.mRunning) {
+			holder.mProgressBar.setVisibility(View.GONE);
+			return;
+		}
+		holder.mProgressBar.setVisibility(View.VISIBLE);
+		DownloadProgressPoller.Progress progress = holder.mDownloadId == -1 ? null
+				: mProgressPoller.getProgress(holder.mDownloadId);
+		if (progress == null || progress.getTotal() <= 0) {
+			holder.mProgressBar.setIndeterminate(true);
+			return;
+		}
+		holder.mProgressBar.setIndeterminate(false);
+		holder.mProgressBar.setMax(1000);
+		holder.mProgressBar.setProgress((int) (progress.getBytes() * 1000 / progress
+				.getTotal()));
+	}
+
+	@Override
+	public void onDownloadProgress(long downloadId, long bytes, long total) {
+		// only row of this download is re-bound
+		ViewHolder holder = mDownloadHolders.get(downloadId);
+		if (holder != null) {
+			bindProgress(holder);
+		}
+	}
+
+	@Override
+	public Cursor swapCursor(Cursor newCursor) {
+		Cursor oldCursor = super.swapCursor(newCursor);
+		Set<Long> downloadIds = new HashSet<Long>();
+		if (newCursor != null) {
+			for (newCursor.moveToFirst(); !newCursor.isAfterLast(); newCursor
+					.moveToNext()) {
+				if (!newCursor.isNull(PROJECTION_DOWNLOAD_STATUS)
+						&& !newCursor.isNull(PROJECTION_DOWNLOAD_MANAGER_ID)
+						&& isRunning(newCursor
+								.getInt(PROJECTION_DOWNLOAD_STATUS))) {
+					downloadIds.add(newCursor
+							.getLong(PROJECTION_DOWNLOAD_MANAGER_ID));
+				}
+			}
+		}
+		mProgressPoller.setDownloadIds(downloadIds);
+		return oldCursor;
+	}
+
+	public void onActivityResume() {
+		mProgressPoller.onActivityResume();
+	}
+
+	public void onActivityPause() {
+		mProgressPoller.onActivityPause();
+	}
+
 	@Override
 	public void onClick(View v) {
 		switch (v.getId()) {
@@ -138,9 +214,4 @@ public class AppVersionsAdapter extends CursorAdapter implements
 		}
 	}
 
-	public void setDownloadsMap(Map<String, DownloadItem> map) {
-		this.mMap = map;
-		notifyDataSetChanged();
-	}
-
 }
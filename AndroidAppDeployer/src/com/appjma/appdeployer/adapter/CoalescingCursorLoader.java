@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.adapter;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.support.v4.content.AsyncTaskLoader;
+import android.support.v4.content.CursorLoader;
+import android.util.Log;
+
+import com.appjma.appdeployer.BuildConfig;
+import com.appjma.appdeployer.content.ChangeNotificationScope;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Cursor loader like {@link CursorLoader} that does not re-query on every
+ * change made while {@link ChangeNotificationScope} is active, instead all
+ * changes are delivered as one reload.
+ *
+ * If row changes are enabled by {@link #setRowChanges(Uri, String, String)}
+ * and only known rows were updated without changing their order, loader
+ * re-reads only those rows and delivers {@link RowPatchCursor} on top of
+ * previous cursor.
+ */
+public class CoalescingCursorLoader extends AsyncTaskLoader<Cursor> implements
+		ChangeNotificationScope.Listener {
+
+	private static final String TAG = "CoalescingCursorLoader";
+
+	/**
+	 * After so many patches cursor is loaded again from scratch
+	 */
+	private static final int MAX_PATCH_DEPTH = 8;
+
+	private static final AtomicLong sRowsRead = new AtomicLong();
+
+	/**
+	 * Fully loaded cursor delivered together with index of its rows, so index
+	 * is built before list reads cursor
+	 */
+	private static class IndexedCursor extends CursorWrapper {
+		private final RowPatchCursor.RowIndex mIndex;
+
+		public IndexedCursor(Cursor cursor, RowPatchCursor.RowIndex index) {
+			super(cursor);
+			mIndex = index;
+		}
+	}
+
+	private final ForceLoadContentObserver mObserver;
+	private final Uri mUri;
+	private String[] mProjection;
+	private final String mSelection;
+	private final String[] mSelectionArgs;
+	private final String mSortOrder;
+	private Uri mRowChangesUri;
+	private String mIdField;
+	private int mIdColumn = -1;
+	private int mOrderColumn = -1;
+
+	private Cursor mCursor;
+	private RowPatchCursor.RowIndex mIndex;
+	private boolean mChangePending;
+	private Set<Long> mPatchIds;
+	private boolean mFullReload;
+
+	public CoalescingCursorLoader(Context context, Uri uri,
+			String[] projection, String selection, String[] selectionArgs,
+			String sortOrder) {
+		super(context);
+		mObserver = new ForceLoadContentObserver();
+		mUri = uri;
+		mProjection = projection;
+		mSelection = selection;
+		mSelectionArgs = selectionArgs;
+		mSortOrder = sortOrder;
+	}
+
+	/**
+	 * Enables patching of updated rows
+	 *
+	 * @param tableUri
+	 *            content uri of table which rows are loaded
+	 * @param idField
+	 *            row id field, has to be in projection
+	 * @param orderField
+	 *            field of sort order, if it is not in projection it is added
+	 *            as last column
+	 */
+	public CoalescingCursorLoader setRowChanges(Uri tableUri, String idField,
+			String orderField) {
+		mIdColumn = Arrays.asList(mProjection).indexOf(idField);
+		checkArgument(mIdColumn >= 0, "Id field have to be in projection");
+		mOrderColumn = Arrays.asList(mProjection).indexOf(orderField);
+		if (mOrderColumn < 0) {
+			mOrderColumn = mProjection.length;
+			mProjection = Arrays.copyOf(mProjection, mProjection.length + 1);
+			mProjection[mOrderColumn] = orderField;
+		}
+		mRowChangesUri = tableUri;
+		mIdField = idField;
+		return this;
+	}
+
+	/**
+	 * @return number of rows read from provider by all loaders
+	 */
+	public static long getRowsRead() {
+		return sRowsRead.get();
+	}
+
+	@Override
+	public Uri getRowChangesUri() {
+		return mRowChangesUri;
+	}
+
+	@Override
+	public Cursor loadInBackground() {
+		Set<Long> patchIds;
+		Cursor base;
+		RowPatchCursor.RowIndex index;
+		synchronized (this) {
+			patchIds = mFullReload ? null : mPatchIds;
+			mPatchIds = null;
+			mFullReload = false;
+			base = mCursor;
+			index = mIndex;
+		}
+		// base cursor is bound to list, it must not be moved here
+		if (patchIds != null && base != null && index != null) {
+			Cursor patch = loadPatch(base, index, patchIds);
+			if (patch != null) {
+				return patch;
+			}
+		}
+		Cursor cursor = getContext().getContentResolver().query(mUri,
+				mProjection, mSelection, mSelectionArgs, mSortOrder);
+		if (cursor != null) {
+			// Ensure the cursor window is filled
+			int count = cursor.getCount();
+			cursor.registerContentObserver(mObserver);
+			onRowsRead(count, false);
+			if (mIdColumn >= 0) {
+				// list does not hold new cursor yet, so it could be read here
+				return new IndexedCursor(cursor, RowPatchCursor.RowIndex.build(
+						cursor, mIdColumn, mOrderColumn));
+			}
+		}
+		return cursor;
+	}
+
+	private Cursor loadPatch(Cursor base, RowPatchCursor.RowIndex index,
+			Set<Long> ids) {
+		StringBuilder selection = new StringBuilder();
+		if (mSelection != null) {
+			selection.append("(").append(mSelection).append(") AND ");
+		}
+		selection.append(mIdField).append(" IN (");
+		boolean first = true;
+		for (Long id : ids) {
+			if (!first) {
+				selection.append(", ");
+			}
+			selection.append(id.longValue());
+			first = false;
+		}
+		selection.append(")");
+		Cursor overlay = getContext().getContentResolver().query(mUri,
+				mProjection, selection.toString(), mSelectionArgs, null);
+		if (overlay == null) {
+			return null;
+		}
+		onRowsRead(overlay.getCount(), true);
+		RowPatchCursor patch = RowPatchCursor.create(base, index, overlay,
+				mIdColumn, mOrderColumn, ids);
+		if (patch == null) {
+			overlay.close();
+		}
+		return patch;
+	}
+
+	private void onRowsRead(int count, boolean patch) {
+		long total = sRowsRead.addAndGet(count);
+		if (BuildConfig.DEBUG) {
+			Log.v(TAG, String.format("%s %d rows of %s, total rows read: %d",
+					patch ? "Patched" : "Loaded", count, mUri, total));
+		}
+	}
+
+	@Override
+	public void deliverResult(Cursor cursor) {
+		if (isReset()) {
+			releaseUnused(cursor);
+			return;
+		}
+		RowPatchCursor.RowIndex index = getIndex(cursor);
+		Cursor oldCursor;
+		synchronized (this) {
+			oldCursor = mCursor;
+			if (!(cursor instanceof RowPatchCursor)
+					|| ((RowPatchCursor) cursor).getBase() == oldCursor) {
+				mCursor = cursor;
+				mIndex = index;
+			}
+		}
+		if (mCursor != cursor) {
+			// patch of cursor that was already replaced
+			((RowPatchCursor) cursor).closeOverlay();
+			requestFullReload();
+			return;
+		}
+		if (isStarted()) {
+			super.deliverResult(cursor);
+		}
+		if (oldCursor != null && oldCursor != cursor && !oldCursor.isClosed()
+				&& !isPatchOf(cursor, oldCursor)) {
+			oldCursor.close();
+		}
+	}
+
+	/**
+	 * @return index built with cursor by {@link #loadInBackground()}, patch
+	 *         cursors reuse index of their base
+	 */
+	private static RowPatchCursor.RowIndex getIndex(Cursor cursor) {
+		if (cursor instanceof RowPatchCursor) {
+			return ((RowPatchCursor) cursor).getIndex();
+		}
+		if (cursor instanceof IndexedCursor) {
+			return ((IndexedCursor) cursor).mIndex;
+		}
+		return null;
+	}
+
+	private static boolean isPatchOf(Cursor cursor, Cursor base) {
+		return cursor instanceof RowPatchCursor
+				&& ((RowPatchCursor) cursor).getBase() == base;
+	}
+
+	private void releaseUnused(Cursor cursor) {
+		if (cursor == null || cursor.isClosed()) {
+			return;
+		}
+		if (cursor instanceof RowPatchCursor) {
+			// base is still used by this or previous result
+			((RowPatchCursor) cursor).closeOverlay();
+		} else if (cursor != mCursor) {
+			cursor.close();
+		}
+	}
+
+	@Override
+	protected void onStartLoading() {
+		ChangeNotificationScope.register(this);
+		if (mCursor != null) {
+			deliverResult(mCursor);
+		}
+		if (takeContentChanged() || mCursor == null) {
+			forceLoad();
+		}
+	}
+
+	@Override
+	protected void onStopLoading() {
+		cancelLoad();
+	}
+
+	@Override
+	public void onCanceled(Cursor cursor) {
+		// canceled load could be the one that should reload everything
+		synchronized (this) {
+			mFullReload = true;
+		}
+		releaseUnused(cursor);
+	}
+
+	private void requestFullReload() {
+		synchronized (this) {
+			mPatchIds = null;
+			mFullReload = true;
+		}
+		super.onContentChanged();
+	}
+
+	@Override
+	protected void onReset() {
+		super.onReset();
+		onStopLoading();
+		ChangeNotificationScope.unregister(this);
+		mChangePending = false;
+		synchronized (this) {
+			mPatchIds = null;
+			mFullReload = false;
+			if (mCursor != null && !mCursor.isClosed()) {
+				mCursor.close();
+			}
+			mCursor = null;
+			mIndex = null;
+		}
+	}
+
+	@Override
+	public void onContentChanged() {
+		if (ChangeNotificationScope.isActive()) {
+			mChangePending = true;
+			ChangeNotificationScope.scheduleFlush();
+			return;
+		}
+		requestFullReload();
+	}
+
+	@Override
+	public void onFlush() {
+		if (!mChangePending) {
+			return;
+		}
+		mChangePending = false;
+		ChangeNotificationScope.ChangeSet changes = ChangeNotificationScope
+				.takeChanges(this);
+		if (changes == null || changes.isStructural() || mCursor == null
+				|| mCursor.isClosed() || mIndex == null
+				|| RowPatchCursor.getDepth(mCursor) >= MAX_PATCH_DEPTH) {
+			requestFullReload();
+			return;
+		}
+		Set<Long> ids = changes.getIds();
+		if (!mIndex.containsAny(ids)) {
+			// none of loaded rows was changed
+			return;
+		}
+		synchronized (this) {
+			if (!mFullReload) {
+				if (mPatchIds == null) {
+					mPatchIds = new HashSet<Long>();
+				}
+				mPatchIds.addAll(ids);
+			}
+		}
+		super.onContentChanged();
+	}
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.adapter;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import android.app.DownloadManager;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+/**
+ * Polls {@link DownloadManager} for byte progress of given downloads and
+ * reports changes on main thread.
+ *
+ * Only given download ids are queried and only while there is any of them, so
+ * poller does not cost anything when nothing is downloaded.
+ */
+public class DownloadProgressPoller {
+
+	public interface Listener {
+		/**
+		 * Called on main thread when progress of download changed
+		 *
+		 * @param total
+		 *            size of file or -1 if not yet known
+		 */
+		void onDownloadProgress(long downloadId, long bytes, long total);
+	}
+
+	public static class Progress {
+		private final long mBytes;
+		private final long mTotal;
+
+		private Progress(long bytes, long total) {
+			mBytes = bytes;
+			mTotal = total;
+		}
+
+		public long getBytes() {
+			return mBytes;
+		}
+
+		public long getTotal() {
+			return mTotal;
+		}
+	}
+
+	/**
+	 * Progress of download is reported at most once per this interval
+	 */
+	private static final long POLL_INTERVAL_MS = 1000;
+
+	private final DownloadManager mDownloadManager;
+	private final Listener mListener;
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private final Map<Long, Progress> mProgress = new HashMap<Long, Progress>();
+	private Set<Long> mDownloadIds = new HashSet<Long>();
+	private boolean mStarted;
+	private HandlerThread mThread;
+	private Handler mHandler;
+
+	private final Runnable mPoll = new Runnable() {
+
+		@Override
+		public void run() {
+			long[] ids;
+			synchronized (DownloadProgressPoller.this) {
+				ids = new long[mDownloadIds.size()];
+				int i = 0;
+				for (Long id : mDownloadIds) {
+					ids[i++] = id;
+				}
+			}
+			if (ids.length == 0) {
+				return;
+			}
+			final Map<Long, Progress> progress = query(ids);
+			mMainHandler.post(new Runnable() {
+
+				@Override
+				public void run() {
+					deliver(progress);
+				}
+			});
+			synchronized (DownloadProgressPoller.this) {
+				// polling thread could be already stopped or replaced
+				if (mThread != null && mThread.getLooper() == Looper.myLooper()) {
+					mHandler.postDelayed(this, POLL_INTERVAL_MS);
+				}
+			}
+		}
+	};
+
+	public DownloadProgressPoller(Context context, Listener listener) {
+		mDownloadManager = (DownloadManager) context
+				.getSystemService(Context.DOWNLOAD_SERVICE);
+		mListener = listener;
+	}
+
+	/**
+	 * Sets downloads that are still running, should be called on main thread
+	 */
+	public void setDownloadIds(Set<Long> downloadIds) {
+		synchronized (this) {
+			mDownloadIds = new HashSet<Long>(downloadIds);
+		}
+		mProgress.keySet().retainAll(downloadIds);
+		updatePolling();
+	}
+
+	/**
+	 * @return last known progress of download or null
+	 */
+	public Progress getProgress(long downloadId) {
+		return mProgress.get(downloadId);
+	}
+
+	public void onActivityResume() {
+		mStarted = true;
+		updatePolling();
+	}
+
+	public void onActivityPause() {
+		mStarted = false;
+		updatePolling();
+	}
+
+	private synchronized void updatePolling() {
+		boolean poll = mStarted && !mDownloadIds.isEmpty();
+		if (poll && mThread == null) {
+			mThread = new HandlerThread("DownloadProgressPoller");
+			mThread.start();
+			mHandler = new Handler(mThread.getLooper());
+			mHandler.post(mPoll);
+		} else if (!poll && mThread != null) {
+			mHandler.removeCallbacks(mPoll);
+			mThread.quit();
+			mThread = null;
+			mHandler = null;
+		}
+	}
+
+	private Map<Long, Progress> query(long[] ids) {
+		Map<Long, Progress> progress = new HashMap<Long, Progress>();
+		Cursor cursor = mDownloadManager.query(new DownloadManager.Query()
+				.setFilterById(ids));
+		if (cursor == null) {
+			return progress;
+		}
+		try {
+			int idColumn = cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_ID);
+			int bytesColumn = cursor
+					.getColumnIndexOrThrow(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR);
+			int totalColumn = cursor
+					.getColumnIndexOrThrow(DownloadManager.COLUMN_TOTAL_SIZE_BYTES);
+			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor
+					.moveToNext()) {
+				progress.put(cursor.getLong(idColumn), new Progress(
+						cursor.getLong(bytesColumn), cursor.getLong(totalColumn)));
+			}
+		} finally {
+			cursor.close();
+		}
+		return progress;
+	}
+
+	private void deliver(Map<Long, Progress> progress) {
+		for (Map.Entry<Long, Progress> entry : progress.entrySet()) {
+			long downloadId = entry.getKey();
+			Progress current = entry.getValue();
+			synchronized (this) {
+				if (!mDownloadIds.contains(downloadId)) {
+					// download finished while it was queried
+					continue;
+				}
+			}
+			Progress last = mProgress.get(downloadId);
+			if (last != null && last.mBytes == current.mBytes
+					&& last.mTotal == current.mTotal) {
+				continue;
+			}
+			mProgress.put(downloadId, current);
+			mListener.onDownloadProgress(downloadId, current.mBytes,
+					current.mTotal);
+		}
+	}
+
+}
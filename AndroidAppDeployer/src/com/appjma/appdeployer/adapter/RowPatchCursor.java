@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.adapter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.annotation.TargetApi;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.os.Build;
+
+import com.google.common.base.Objects;
+
+/**
+ * Cursor that shows rows of base cursor, except changed rows which are read
+ * from small overlay cursor with the same projection.
+ *
+ * Base cursor is reused, so only changed rows have to be queried.
+ */
+class RowPatchCursor extends CursorWrapper {
+
+	/**
+	 * Positions and sort values of rows of delivered cursor. It is built on
+	 * main thread when cursor is delivered, so background loads do not have
+	 * to move cursor that is bound to list.
+	 */
+	public static class RowIndex {
+		private final Map<Long, Integer> mPositions;
+		private final String[] mOrderValues;
+
+		private RowIndex(Map<Long, Integer> positions, String[] orderValues) {
+			mPositions = positions;
+			mOrderValues = orderValues;
+		}
+
+		/**
+		 * @param orderColumn
+		 *            column of sort order, rows which value changed can not be
+		 *            patched
+		 */
+		public static RowIndex build(Cursor cursor, int idColumn,
+				int orderColumn) {
+			Map<Long, Integer> positions = new HashMap<Long, Integer>();
+			String[] orderValues = new String[cursor.getCount()];
+			int oldPosition = cursor.getPosition();
+			try {
+				for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor
+						.moveToNext()) {
+					int position = cursor.getPosition();
+					positions.put(cursor.getLong(idColumn), position);
+					orderValues[position] = cursor.getString(orderColumn);
+				}
+			} finally {
+				cursor.moveToPosition(oldPosition);
+			}
+			return new RowIndex(positions, orderValues);
+		}
+
+		/**
+		 * @return true if any row has one of given ids
+		 */
+		public boolean containsAny(Set<Long> ids) {
+			for (Long id : ids) {
+				if (mPositions.containsKey(id)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private final Cursor mBase;
+	private final Cursor mOverlay;
+	private final RowIndex mIndex;
+	private final int[] mOverlayPositions;
+	private final int mDepth;
+
+	/**
+	 * Base cursor is not touched, so it could be called on background thread
+	 * while base is used by list.
+	 *
+	 * @param index
+	 *            index of base cursor
+	 * @param ids
+	 *            ids of changed rows, overlay should contain those of them that
+	 *            still match query
+	 * @return patched cursor or null if set or order of rows changed (row
+	 *         appeared, disappeared or its sort value changed) and whole
+	 *         cursor has to be reloaded
+	 */
+	public static RowPatchCursor create(Cursor base, RowIndex index,
+			Cursor overlay, int idColumn, int orderColumn, Set<Long> ids) {
+		int[] overlayPositions = new int[index.mOrderValues.length];
+		Arrays.fill(overlayPositions, -1);
+		for (overlay.moveToFirst(); !overlay.isAfterLast(); overlay
+				.moveToNext()) {
+			Integer position = index.mPositions.get(overlay.getLong(idColumn));
+			if (position == null) {
+				// new row matches query
+				return null;
+			}
+			if (!Objects.equal(index.mOrderValues[position],
+					overlay.getString(orderColumn))) {
+				// row moved to other position
+				return null;
+			}
+			overlayPositions[position] = overlay.getPosition();
+		}
+		for (Long id : ids) {
+			Integer position = index.mPositions.get(id);
+			if (position != null && overlayPositions[position] < 0) {
+				// row does not match query anymore
+				return null;
+			}
+		}
+		return new RowPatchCursor(base, overlay, index, overlayPositions);
+	}
+
+	/**
+	 * @return number of patches stacked on first full cursor
+	 */
+	public static int getDepth(Cursor cursor) {
+		if (cursor instanceof RowPatchCursor) {
+			return ((RowPatchCursor) cursor).mDepth;
+		}
+		return 0;
+	}
+
+	private RowPatchCursor(Cursor base, Cursor overlay, RowIndex index,
+			int[] overlayPositions) {
+		super(base);
+		mBase = base;
+		mOverlay = overlay;
+		mIndex = index;
+		mOverlayPositions = overlayPositions;
+		mDepth = getDepth(base) + 1;
+	}
+
+	public Cursor getBase() {
+		return mBase;
+	}
+
+	/**
+	 * @return index of base cursor, it is valid for patch too because patched
+	 *         rows keep their positions
+	 */
+	public RowIndex getIndex() {
+		return mIndex;
+	}
+
+	/**
+	 * Closes only overlay, base cursor is left untouched
+	 */
+	public void closeOverlay() {
+		mOverlay.close();
+	}
+
+	@Override
+	public void close() {
+		mOverlay.close();
+		super.close();
+	}
+
+	private Cursor current() {
+		int position = mBase.getPosition();
+		if (position < 0 || position >= mOverlayPositions.length) {
+			return mBase;
+		}
+		int overlayPosition = mOverlayPositions[position];
+		if (overlayPosition < 0) {
+			return mBase;
+		}
+		mOverlay.moveToPosition(overlayPosition);
+		return mOverlay;
+	}
+
+	@Override
+	public byte[] getBlob(int columnIndex) {
+		return current().getBlob(columnIndex);
+	}
+
+	@Override
+	public String getString(int columnIndex) {
+		return current().getString(columnIndex);
+	}
+
+	@Override
+	public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+		current().copyStringToBuffer(columnIndex, buffer);
+	}
+
+	@Override
+	public short getShort(int columnIndex) {
+		return current().getShort(columnIndex);
+	}
+
+	@Override
+	public int getInt(int columnIndex) {
+		return current().getInt(columnIndex);
+	}
+
+	@Override
+	public long getLong(int columnIndex) {
+		return current().getLong(columnIndex);
+	}
+
+	@Override
+	public float getFloat(int columnIndex) {
+		return current().getFloat(columnIndex);
+	}
+
+	@Override
+	public double getDouble(int columnIndex) {
+		return current().getDouble(columnIndex);
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	@Override
+	public int getType(int columnIndex) {
+		return current().getType(columnIndex);
+	}
+
+	@Override
+	public boolean isNull(int columnIndex) {
+		return current().isNull(columnIndex);
+	}
+
+}
@@ -84,6 +84,17 @@ public class AppContract {
 				.field(DB_TABLE, "synced");
 		public static final String DOWNLOAD_MANAGER_ID = DataHelper.field(
 				DB_TABLE, "download_manager_id");
+		/**
+		 * Last known {@link android.app.DownloadManager} status of
+		 * {@link #DOWNLOAD_MANAGER_ID} download or null
+		 */
+		public static final String DOWNLOAD_STATUS = DataHelper.field(
+				DB_TABLE, "download_status");
+		/**
+		 * SHA-256 of APK published by server or null
+		 */
+		public static final String SHA256 = DataHelper.field(DB_TABLE,
+				"sha256");
 	}
 
 	public static class Share implements BaseColumns {
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.content;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Process wide scope in which content change notifications are coalesced.
+ *
+ * Sync opens scope with {@link #begin()} and closes it with {@link #end()}.
+ * Listeners that got change notification while scope is open defer it and
+ * are flushed once when last scope ends, or at most every
+ * {@link #FLUSH_INTERVAL_MS} while sync is still running.
+ *
+ * Writers announce which rows they changed with
+ * {@link #announceRowsChanged(Uri, Collection)} or
+ * {@link #announceStructureChanged(Uri)}, so listener could re-read only
+ * changed rows. Listener that got change that was not announced should reload
+ * everything.
+ *
+ * Listeners are registered and flushed on main thread, other methods could be
+ * called from any thread.
+ */
+public class ChangeNotificationScope {
+
+	public interface Listener {
+		/**
+		 * Called on main thread, listener should deliver deferred changes
+		 */
+		void onFlush();
+
+		/**
+		 * @return content uri of table which row changes listener can apply
+		 *         or null if listener always reloads everything
+		 */
+		Uri getRowChangesUri();
+	}
+
+	/**
+	 * Changes announced for listener since its last flush
+	 */
+	public static class ChangeSet {
+		private final Set<Long> mIds = new HashSet<Long>();
+		private boolean mStructural;
+
+		/**
+		 * @return true if rows were added or removed, or changed rows are not
+		 *         known
+		 */
+		public boolean isStructural() {
+			return mStructural;
+		}
+
+		public Set<Long> getIds() {
+			return mIds;
+		}
+	}
+
+	public static final long FLUSH_INTERVAL_MS = 2000;
+
+	private static final Handler sHandler = new Handler(Looper.getMainLooper());
+	private static final List<Listener> sListeners = new ArrayList<Listener>();
+	private static int sDepth = 0;
+	private static boolean sFlushScheduled = false;
+	private static final Map<Listener, ChangeSet> sChanges = new HashMap<Listener, ChangeSet>();
+
+	private static final Runnable sFlush = new Runnable() {
+
+		@Override
+		public void run() {
+			sFlushScheduled = false;
+			for (Listener listener : new ArrayList<Listener>(sListeners)) {
+				listener.onFlush();
+			}
+		}
+	};
+
+	public static synchronized void begin() {
+		sDepth++;
+	}
+
+	public static synchronized void end() {
+		if (sDepth <= 0) {
+			throw new IllegalStateException("Scope was not started");
+		}
+		sDepth--;
+		if (sDepth == 0) {
+			sHandler.post(new Runnable() {
+
+				@Override
+				public void run() {
+					sHandler.removeCallbacks(sFlush);
+					sFlush.run();
+					if (!isActive()) {
+						sChanges.clear();
+					}
+				}
+			});
+		}
+	}
+
+	public static synchronized boolean isActive() {
+		return sDepth > 0;
+	}
+
+	/**
+	 * Announces that rows with given ids were updated, should be called after
+	 * changes are written
+	 */
+	public static void announceRowsChanged(Uri contentUri, Collection<Long> ids) {
+		announce(contentUri, new ArrayList<Long>(ids), false);
+	}
+
+	/**
+	 * Announces that rows were inserted or deleted, should be called after
+	 * changes are written
+	 */
+	public static void announceStructureChanged(Uri contentUri) {
+		announce(contentUri, null, true);
+	}
+
+	private static void announce(final Uri contentUri, final List<Long> ids,
+			final boolean structural) {
+		if (!isActive()) {
+			// changes are delivered immediately
+			return;
+		}
+		sHandler.post(new Runnable() {
+
+			@Override
+			public void run() {
+				for (Listener listener : sListeners) {
+					ChangeSet changes = sChanges.get(listener);
+					if (changes == null) {
+						changes = new ChangeSet();
+						sChanges.put(listener, changes);
+					}
+					Uri rowChangesUri = listener.getRowChangesUri();
+					if (rowChangesUri == null) {
+						changes.mStructural = true;
+					} else if (!rowChangesUri.equals(contentUri)) {
+						// changes of other table
+						continue;
+					} else if (structural) {
+						changes.mStructural = true;
+					} else {
+						changes.mIds.addAll(ids);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Should be called on main thread by listener during flush
+	 *
+	 * @return changes announced since last call or null if nothing was
+	 *         announced and listener should reload everything
+	 */
+	public static ChangeSet takeChanges(Listener listener) {
+		return sChanges.remove(listener);
+	}
+
+	/**
+	 * Should be called on main thread by listener that deferred change
+	 */
+	public static void scheduleFlush() {
+		if (!sFlushScheduled) {
+			sFlushScheduled = true;
+			sHandler.postDelayed(sFlush, FLUSH_INTERVAL_MS);
+		}
+	}
+
+	public static void register(Listener listener) {
+		if (!sListeners.contains(listener)) {
+			sListeners.add(listener);
+		}
+	}
+
+	public static void unregister(Listener listener) {
+		sListeners.remove(listener);
+		sChanges.remove(listener);
+	}
+
+	private ChangeNotificationScope() {
+	}
+
+}
@@ -19,6 +19,7 @@ import com.appjma.appdeployer.AppPreferences;
 import com.appjma.appdeployer.content.AppContract.AppVersions;
 import com.appjma.appdeployer.content.AppContract.Apps;
 import com.appjma.appdeployer.content.AppContract.Share;
+import com.appjma.appdeployer.service.HttpValidatorCache;
 import com.appunite.contentprovider.ContractDesc;
 import com.appunite.contentprovider.ContractDesc.FieldType;
 import com.appunite.contentprovider.ContractFullDesc;
@@ -37,7 +38,7 @@ import android.net.Uri;
 public class DBHelper extends SQLiteOpenHelper {
 
 	private static final String DB_NAME = "app.db";
-	private static final int DB_VERSION = 1;
+	private static final int DB_VERSION = 5;
 
 	private static class AutoCratedAt implements OnInsertTrigger,
 			OnUpdateTrigger {
@@ -78,16 +79,6 @@ public class DBHelper extends SQLiteOpenHelper {
 	static final AutoCratedAt DESC_APPS_TRIGGER = new AutoCratedAt(
 			Apps.CREATED_AT, Apps.UPDATED_AT);
 
-	private static final String DESC_APPS_NEWEST_VERSION_SELECT = "(SELECT "
-			+ AppVersions.VERSION + " FROM " + AppVersions.DB_TABLE + " WHERE "
-			+ AppVersions.APP_ID + " == " + Apps.APP_ID + " ORDER BY "
-			+ AppVersions.UPDATED_AT + " ASC" + " LIMIT 1)";
-	
-	private static final String DESC_APPS_NEWEST_DOWNLOAD_URL_SELECT = "(SELECT "
-			+ AppVersions.DOWNLOAD_URL + " FROM " + AppVersions.DB_TABLE + " WHERE "
-			+ AppVersions.APP_ID + " == " + Apps.APP_ID + " ORDER BY "
-			+ AppVersions.UPDATED_AT + " ASC" + " LIMIT 1)";
-
 	static final ContractDesc DESC_APPS_DB_SQL = new ContractDesc.Builder(
 			Apps.DB_TABLE, Apps.APP_ID, Apps.CONTENT_DIR_TYPE,
 			Apps.CONTENT_ITEM_TYPE).setGuidField(Apps.GUID)
@@ -100,8 +91,8 @@ public class DBHelper extends SQLiteOpenHelper {
 			.addTableField(Apps.SHARE_LINK, FieldType.TEXT)
 			.addTableField(Apps.SYNCED, FieldType.INTEGER)
 			.addTableField(Apps.DELETED, FieldType.INTEGER)
-			.addFakeField(Apps.NEWEST_VERSION, DESC_APPS_NEWEST_VERSION_SELECT)
-			.addFakeField(Apps.NEWEST_DOWNLOAD_URL, DESC_APPS_NEWEST_DOWNLOAD_URL_SELECT)
+			.addTableField(Apps.NEWEST_VERSION, FieldType.TEXT)
+			.addTableField(Apps.NEWEST_DOWNLOAD_URL, FieldType.TEXT)
 			.addOnInsertTrigger(DESC_APPS_TRIGGER)
 			.addOnUpdateTrigger(DESC_APPS_TRIGGER).build();
 
@@ -120,6 +111,8 @@ public class DBHelper extends SQLiteOpenHelper {
 			.addTableField(AppVersions.DOWNLOAD_URL, FieldType.TEXT)
 			.addTableField(AppVersions.SYNCED, FieldType.INTEGER)
 			.addTableField(AppVersions.DOWNLOAD_MANAGER_ID, FieldType.TEXT)
+			.addTableField(AppVersions.DOWNLOAD_STATUS, FieldType.INTEGER)
+			.addTableField(AppVersions.SHA256, FieldType.TEXT)
 			.addOnInsertTrigger(DESC_APP_VERSIONS_TRIGGER)
 			.addOnUpdateTrigger(DESC_APP_VERSIONS_TRIGGER).build();
 
@@ -145,6 +138,90 @@ public class DBHelper extends SQLiteOpenHelper {
 			.addConnection1n(DESC_APPS_DB_SQL, Apps.APP_ID, DESC_SHARES_DB_SQL,
 					Share.APP_ID).build();
 
+	/**
+	 * @return bare, quoted column name of contract field usable in raw sql
+	 */
+	private static String column(String field) {
+		return "\"" + field.substring(field.lastIndexOf('.') + 1) + "\"";
+	}
+
+	/**
+	 * Sets newest version columns of app with given id (sql expression) from
+	 * its versions
+	 */
+	private static String sqlUpdateNewestVersion(String appIdExpression) {
+		String newestVersion = "SELECT %s FROM " + AppVersions.DB_TABLE
+				+ " WHERE " + column(AppVersions.APP_ID) + " = "
+				+ appIdExpression + " ORDER BY "
+				+ column(AppVersions.UPDATED_AT) + " ASC LIMIT 1";
+		return "UPDATE " + Apps.DB_TABLE + " SET "
+				+ column(Apps.NEWEST_VERSION) + " = ("
+				+ String.format(newestVersion, column(AppVersions.VERSION))
+				+ "), " + column(Apps.NEWEST_DOWNLOAD_URL) + " = ("
+				+ String.format(newestVersion,
+						column(AppVersions.DOWNLOAD_URL)) + ") WHERE "
+				+ column(Apps.APP_ID) + " = " + appIdExpression + ";";
+	}
+
+	private static String sqlCreateIndex(String name, String table,
+			String... fields) {
+		StringBuilder sql = new StringBuilder("CREATE INDEX IF NOT EXISTS ")
+				.append(name).append(" ON ").append(table).append(" (");
+		for (int i = 0; i < fields.length; i++) {
+			if (i != 0) {
+				sql.append(", ");
+			}
+			sql.append(column(fields[i]));
+		}
+		return sql.append(")").toString();
+	}
+
+	/**
+	 * Indexes used by loaders, sync and newest version triggers. Selections by
+	 * sync_token are always "!=" so they use app_id/guid indexes instead.
+	 */
+	private static final String[] SQL_CREATE_INDEXES = new String[] {
+			sqlCreateIndex("app_versions_app_id_updated_at",
+					AppVersions.DB_TABLE, AppVersions.APP_ID,
+					AppVersions.UPDATED_AT),
+			sqlCreateIndex("app_versions_guid", AppVersions.DB_TABLE,
+					AppVersions.GUID),
+			sqlCreateIndex("app_versions_download_manager_id",
+					AppVersions.DB_TABLE, AppVersions.DOWNLOAD_MANAGER_ID),
+			sqlCreateIndex("apps_guid", Apps.DB_TABLE, Apps.GUID),
+			sqlCreateIndex("apps_deleted_updated_at", Apps.DB_TABLE,
+					Apps.DELETED, Apps.UPDATED_AT),
+			sqlCreateIndex("apps_synced", Apps.DB_TABLE, Apps.SYNCED),
+			sqlCreateIndex("shares_app_id", Share.DB_TABLE, Share.APP_ID) };
+
+	/**
+	 * Newest version columns of apps are maintained by triggers instead of
+	 * being queried for every row of apps list
+	 */
+	private static final String[] SQL_CREATE_NEWEST_VERSION = new String[] {
+			"CREATE TRIGGER IF NOT EXISTS apps_newest_version_on_app_insert"
+					+ " AFTER INSERT ON " + Apps.DB_TABLE + " BEGIN "
+					+ sqlUpdateNewestVersion("NEW." + column(Apps.APP_ID))
+					+ " END",
+			"CREATE TRIGGER IF NOT EXISTS apps_newest_version_on_insert"
+					+ " AFTER INSERT ON " + AppVersions.DB_TABLE + " BEGIN "
+					+ sqlUpdateNewestVersion("NEW."
+							+ column(AppVersions.APP_ID)) + " END",
+			"CREATE TRIGGER IF NOT EXISTS apps_newest_version_on_update"
+					+ " AFTER UPDATE OF " + column(AppVersions.APP_ID) + ", "
+					+ column(AppVersions.VERSION) + ", "
+					+ column(AppVersions.DOWNLOAD_URL) + ", "
+					+ column(AppVersions.UPDATED_AT) + " ON "
+					+ AppVersions.DB_TABLE + " BEGIN "
+					+ sqlUpdateNewestVersion("OLD."
+							+ column(AppVersions.APP_ID))
+					+ sqlUpdateNewestVersion("NEW."
+							+ column(AppVersions.APP_ID)) + " END",
+			"CREATE TRIGGER IF NOT EXISTS apps_newest_version_on_delete"
+					+ " AFTER DELETE ON " + AppVersions.DB_TABLE + " BEGIN "
+					+ sqlUpdateNewestVersion("OLD."
+							+ column(AppVersions.APP_ID)) + " END" };
+
 	private Context mContext;
 
 	public DBHelper(Context context) {
@@ -155,6 +232,12 @@ public class DBHelper extends SQLiteOpenHelper {
 	@Override
 	public void onCreate(SQLiteDatabase db) {
 		FULL_DESC.sqlCreateAll(db);
+		for (String sql : SQL_CREATE_INDEXES) {
+			db.execSQL(sql);
+		}
+		for (String sql : SQL_CREATE_NEWEST_VERSION) {
+			db.execSQL(sql);
+		}
 	}
 
 	@Override
@@ -167,6 +250,9 @@ public class DBHelper extends SQLiteOpenHelper {
 		// Clearing user preferences
 		new AppPreferences(mContext).edit().clear().commit();
 
+		// Clearing cached responses validators
+		HttpValidatorCache.getInstance(mContext).clear();
+
 		// Removing all tables
 		FULL_DESC.sqlDropAll(db);
 
@@ -26,7 +26,6 @@ import android.util.Log;
 import com.appjma.appdeployer.AppPreferences;
 import com.appjma.appdeployer.service.DownloadService;
 import com.appjma.appdeployer.service.Downloader;
-import com.appunite.syncer.DownloadHelper;
 import com.google.android.gms.auth.GoogleAuthException;
 import com.google.android.gms.auth.GoogleAuthUtil;
 import com.google.android.gms.auth.UserRecoverableAuthException;
@@ -64,8 +63,7 @@ public class AuthAsyncTask extends AsyncTask<Void, Void, Intent> {
 	@Override
 	protected void onPostExecute(Intent result) {
 		if (result == null) {
-			DownloadHelper.startAsyncDownload(mContext,
-					DownloadService.ACTION_SYNC, mUri, null, true);
+			DownloadService.requestSync(mContext, mUri, null, true);
 		} else {
 			mContext.startActivityForResult(result, 100);
 		}
@@ -32,7 +32,6 @@ import com.appjma.appdeployer.R;
 import com.appjma.appdeployer.content.AppContract;
 import com.appjma.appdeployer.service.DownloadService;
 import com.appunite.syncer.AUSyncerStatus;
-import com.appunite.syncer.DownloadHelper;
 import com.google.android.gms.common.AccountPicker;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesUtil;
@@ -65,15 +64,16 @@ public class ErrorReporter implements OnClickListener {
 	public void onReportStatus(boolean screenVisible, boolean screenEmpty,
 			boolean screenProgress, boolean progressIndicator,
 			AUSyncerStatus lastStatus) {
-		mErrorLayout.setVisibility(lastStatus.isError() ? View.VISIBLE
-				: View.GONE);
+		// preempted sync is continued, so it is not shown as error
+		boolean showError = lastStatus.isError() && !isPreempted(lastStatus);
+		mErrorLayout.setVisibility(showError ? View.VISIBLE : View.GONE);
 		mErrorButton.setVisibility(!progressIndicator ? View.VISIBLE
 				: View.GONE);
 		mErrorButton.setText(R.string.error_error_refresh);
 		mErrorRefreshProgress.setVisibility(progressIndicator ? View.VISIBLE
 				: View.GONE);
 		mLastStatus = lastStatus;
-		if (lastStatus.isError()) {
+		if (showError) {
 			long currentTimeMillis = System.currentTimeMillis();
 			CharSequence lastErrorString = DateUtils.getRelativeTimeSpanString(
 					currentTimeMillis, lastStatus.getStatusTimeMs(), 0,
@@ -95,6 +95,12 @@ public class ErrorReporter implements OnClickListener {
 					errorMsg = mActivity
 							.getText(R.string.error_unsupported_device_click_for_more_info);
 					mErrorButton.setText(R.string.error_button_more_info);
+				} else if (DownloadService.STATE_BACKOFF.equals(error)) {
+					long retryDelayMs = DownloadService
+							.getRetryDelayMs(mRefreshUri);
+					errorMsg = mActivity.getString(
+							R.string.error_server_unavailable,
+							DateUtils.formatElapsedTime(retryDelayMs / 1000));
 				} else {
 					throw new RuntimeException("Unknown error: " + error);
 				}
@@ -137,12 +143,16 @@ public class ErrorReporter implements OnClickListener {
 					Dialog dialog = GooglePlayServicesUtil.getErrorDialog(
 							connectionResult, mActivity, REQUEST_SHOW_ERROR);
 					dialog.show();
+				} else if (DownloadService.STATE_BACKOFF.equals(error)
+						|| DownloadService.STATE_PREEMPTED.equals(error)) {
+					DownloadService.requestSync(mActivity, mRefreshUri,
+							null, true);
 				} else {
 					throw new RuntimeException("Unknown error: " + error);
 				}
 			} else {
-				DownloadHelper.startAsyncDownload(mActivity,
-						DownloadService.ACTION_SYNC, mRefreshUri, null, true);
+				DownloadService.requestSync(mActivity, mRefreshUri, null,
+						true);
 			}
 			return;
 		default:
@@ -150,6 +160,12 @@ public class ErrorReporter implements OnClickListener {
 		}
 	}
 
+	private static boolean isPreempted(AUSyncerStatus status) {
+		return status.isCustomIssue()
+				&& DownloadService.STATE_PREEMPTED.equals(status
+						.getMsgObjectAsStringOrThrow());
+	}
+
 	public void onActivityResult(int requestCode, int resultCode, Intent data) {
 		switch (requestCode) {
 		case REQUEST_SHOW_ERROR:
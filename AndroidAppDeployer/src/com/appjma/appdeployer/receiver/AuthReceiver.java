@@ -16,7 +16,6 @@
 package com.appjma.appdeployer.receiver;
 
 import com.appjma.appdeployer.service.DownloadService;
-import com.appunite.syncer.DownloadHelper;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -41,8 +40,7 @@ public class AuthReceiver extends BroadcastReceiver {
 			Uri uri = extras.getParcelable(ACTION_AUTHENTICATED_EXTRA_URI);
 			checkNotNull(uri);
 			Bundle bundle = extras.getBundle(ACTION_AUTHENTICATED_EXTRA_BUNDLE);
-			DownloadHelper.startAsyncDownload(context,
-					DownloadService.ACTION_SYNC, uri, bundle, true);
+			DownloadService.requestSync(context, uri, bundle, true);
 		} else {
 			throw new RuntimeException("Unknown action: " + action);
 		}
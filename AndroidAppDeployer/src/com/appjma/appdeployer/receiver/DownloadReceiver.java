@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.receiver;
+
+import com.appjma.appdeployer.service.DownloadStatus;
+
+import android.annotation.TargetApi;
+import android.app.DownloadManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+
+/**
+ * Updates download status of app version when DownloadManager finishes
+ * download. Receiver is exported, so unknown actions are ignored.
+ */
+public class DownloadReceiver extends BroadcastReceiver {
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		String action = intent.getAction();
+		if (!DownloadManager.ACTION_DOWNLOAD_COMPLETE.equals(action)) {
+			return;
+		}
+		final long downloadId = intent.getLongExtra(
+				DownloadManager.EXTRA_DOWNLOAD_ID, -1);
+		if (downloadId == -1) {
+			return;
+		}
+		final Context appContext = context.getApplicationContext();
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			updateAsync(appContext, downloadId);
+		} else {
+			// DownloadManager and provider queries can not block main thread
+			new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					DownloadStatus.update(appContext, downloadId);
+				}
+			}).start();
+		}
+	}
+
+	/**
+	 * Keeps broadcast pending until status is updated, so process is not
+	 * killed in the middle of update
+	 */
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private void updateAsync(final Context context, final long downloadId) {
+		final PendingResult result = goAsync();
+		new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					DownloadStatus.update(context, downloadId);
+				} finally {
+					result.finish();
+				}
+			}
+		}).start();
+	}
+
+}
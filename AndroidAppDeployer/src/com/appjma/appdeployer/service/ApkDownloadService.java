@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.service;
+
+import java.io.IOException;
+
+import android.app.DownloadManager;
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.PowerManager;
+import android.util.Log;
+
+import com.appjma.appdeployer.AppPreferences;
+import com.appjma.appdeployer.BuildConfig;
+import com.appjma.appdeployer.content.AppContract;
+import com.appjma.appdeployer.service.Downloader.UnauthorizedResponseCode;
+import com.appjma.appdeployer.service.TokenProvider.UnsupportedDevice;
+import com.google.android.gms.auth.GoogleAuthException;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * Downloads APK files in app, one at a time. Downloads are not run by
+ * {@link DownloadService}, so syncs do not wait for multi-megabyte transfers.
+ */
+public class ApkDownloadService extends IntentService {
+
+	private static final String TAG = "ApkDownloadService";
+	private static final String EXTRA_APP_VERSION_ID = "app_version_id";
+	private static final long WAKE_LOCK_TIMEOUT_MS = 10 * 60 * 1000;
+
+	private AppPreferences mAppPreferences;
+	private CachedTokenProvider mTokenProvider;
+	private PowerManager.WakeLock mWakeLock;
+
+	public static void start(Context context, String appVersionId) {
+		context.startService(new Intent(context, ApkDownloadService.class)
+				.putExtra(EXTRA_APP_VERSION_ID, appVersionId));
+	}
+
+	public ApkDownloadService() {
+		super(TAG);
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		mAppPreferences = new AppPreferences(this);
+		mTokenProvider = DownloadService.getTokenProvider(this);
+		PowerManager powerManager = (PowerManager) getSystemService(
+				Context.POWER_SERVICE);
+		mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+				TAG);
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		String appVersionId = intent.getStringExtra(EXTRA_APP_VERSION_ID);
+		checkNotNull(appVersionId);
+		// download is started again by authentication callback
+		Uri uri = AppContract.AppVersions.CONTENT_URI.buildUpon()
+				.appendPath(appVersionId)
+				.appendPath(AppContract.Download.CONTENT_PATH).build();
+		mWakeLock.acquire(WAKE_LOCK_TIMEOUT_MS);
+		String token = null;
+		try {
+			token = DownloadService.authenticate(mAppPreferences,
+					mTokenProvider, uri, null);
+			new Downloader(this).downloadFileInApp(appVersionId, token);
+		} catch (UnauthorizedResponseCode e) {
+			logError(appVersionId, e);
+			mTokenProvider.invalidateToken(e.getToken());
+		} catch (IOException e) {
+			logError(appVersionId, e);
+		} catch (GoogleAuthException e) {
+			logError(appVersionId, e);
+		} catch (UnsupportedDevice e) {
+			logError(appVersionId, e);
+		} finally {
+			if (token == null) {
+				DownloadStatus.setStatus(getContentResolver(), appVersionId,
+						DownloadManager.STATUS_FAILED);
+			}
+			if (mWakeLock.isHeld()) {
+				mWakeLock.release();
+			}
+		}
+	}
+
+	private void logError(String appVersionId, Exception e) {
+		if (!BuildConfig.DEBUG) {
+			return;
+		}
+		Log.v(TAG, String.format("Error while downloading version: %s",
+				appVersionId), e);
+	}
+
+}
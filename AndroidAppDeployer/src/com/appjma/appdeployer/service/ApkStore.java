@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.util.Log;
+
+import com.appjma.appdeployer.AppPreferences;
+import com.appjma.appdeployer.BuildConfig;
+
+/**
+ * Local store of downloaded APKs.
+ *
+ * Files are named by SHA-256 of their content, so versions with identical
+ * APKs share one file, and are found by app version guid. Concurrent requests
+ * for the same version share one download. When store exceeds disk budget
+ * least recently used files are removed.
+ */
+public class ApkStore {
+
+	public interface Fetcher {
+		/**
+		 * Downloads APK to given file, file could contain data of previous,
+		 * interrupted try
+		 *
+		 * @return SHA-256 of file computed during download or null if store
+		 *         should compute it
+		 */
+		String fetch(File file) throws IOException;
+	}
+
+	public static class Metrics {
+		private final AtomicLong mHits = new AtomicLong();
+		private final AtomicLong mMisses = new AtomicLong();
+		private final AtomicLong mShared = new AtomicLong();
+		private final AtomicLong mDeduplicated = new AtomicLong();
+		private final AtomicLong mEvictions = new AtomicLong();
+		private final AtomicLong mEvictedBytes = new AtomicLong();
+		private final AtomicLong mUsedBytes = new AtomicLong();
+
+		public long getHits() {
+			return mHits.get();
+		}
+
+		public long getMisses() {
+			return mMisses.get();
+		}
+
+		/**
+		 * @return number of requests that joined download already in progress
+		 */
+		public long getShared() {
+			return mShared.get();
+		}
+
+		/**
+		 * @return number of downloaded files that were already stored for
+		 *         other version
+		 */
+		public long getDeduplicated() {
+			return mDeduplicated.get();
+		}
+
+		public long getEvictions() {
+			return mEvictions.get();
+		}
+
+		public long getEvictedBytes() {
+			return mEvictedBytes.get();
+		}
+
+		/**
+		 * @return size of stored files after last change of store
+		 */
+		public long getUsedBytes() {
+			return mUsedBytes.get();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("hits: %d, misses: %d, shared: %d, "
+					+ "deduplicated: %d, evictions: %d (%d bytes), "
+					+ "used: %d bytes", getHits(), getMisses(), getShared(),
+					getDeduplicated(), getEvictions(), getEvictedBytes(),
+					getUsedBytes());
+		}
+	}
+
+	private static final String TAG = "ApkStore";
+	private static final String PREFERENCES_NAME = "apk_store";
+	private static final String DIR = "apks";
+	private static final String APK_SUFFIX = ".apk";
+	private static final String PART_SUFFIX = ".part";
+	private static final String KEY_VERSION_PREFIX = "version_";
+	private static final String KEY_USED_PREFIX = "used_";
+
+	private static ApkStore sInstance;
+
+	public static synchronized ApkStore getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new ApkStore(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	private final Context mContext;
+	private final SharedPreferences mPreferences;
+	private final AppPreferences mAppPreferences;
+	private final Map<String, FutureTask<File>> mInFlight = new HashMap<String, FutureTask<File>>();
+	private final Metrics mMetrics = new Metrics();
+
+	private ApkStore(Context context) {
+		mContext = context;
+		mPreferences = context.getSharedPreferences(PREFERENCES_NAME, 0);
+		mAppPreferences = new AppPreferences(context);
+	}
+
+	public Metrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * @return stored APK of version or null
+	 */
+	public synchronized File get(String versionGuid) {
+		String hash = mPreferences.getString(KEY_VERSION_PREFIX + versionGuid,
+				null);
+		if (hash == null) {
+			return null;
+		}
+		File dir = getDir();
+		File file = dir == null ? null : new File(dir, hash + APK_SUFFIX);
+		if (file == null || !file.exists()) {
+			// removed by user or storage is not mounted
+			mPreferences.edit().remove(KEY_VERSION_PREFIX + versionGuid)
+					.apply();
+			return null;
+		}
+		mPreferences.edit()
+				.putLong(KEY_USED_PREFIX + hash, System.currentTimeMillis())
+				.apply();
+		return file;
+	}
+
+	/**
+	 * Returns stored APK of version or downloads it. If the same version is
+	 * already being downloaded, waits for that download instead of starting
+	 * another one.
+	 */
+	public File fetch(final String versionGuid, final Fetcher fetcher)
+			throws IOException {
+		File file = get(versionGuid);
+		if (file != null) {
+			mMetrics.mHits.incrementAndGet();
+			return file;
+		}
+		FutureTask<File> task;
+		boolean owner = false;
+		synchronized (mInFlight) {
+			task = mInFlight.get(versionGuid);
+			if (task == null) {
+				task = new FutureTask<File>(new Callable<File>() {
+
+					@Override
+					public File call() throws IOException {
+						File part = new File(getDirOrThrow(), versionGuid
+								+ PART_SUFFIX);
+						String hash = fetcher.fetch(part);
+						return put(versionGuid, part, hash);
+					}
+				});
+				mInFlight.put(versionGuid, task);
+				owner = true;
+			}
+		}
+		if (owner) {
+			mMetrics.mMisses.incrementAndGet();
+			try {
+				task.run();
+			} finally {
+				synchronized (mInFlight) {
+					mInFlight.remove(versionGuid);
+				}
+			}
+		} else {
+			mMetrics.mShared.incrementAndGet();
+		}
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Moves downloaded file into store
+	 *
+	 * @param hash
+	 *            SHA-256 of file or null if it has to be computed
+	 * @return stored file
+	 */
+	public File put(String versionGuid, File file, String hash)
+			throws IOException {
+		if (hash == null) {
+			hash = sha256(file);
+		}
+		synchronized (this) {
+			File stored = new File(getDirOrThrow(), hash + APK_SUFFIX);
+			if (stored.exists()) {
+				mMetrics.mDeduplicated.incrementAndGet();
+				file.delete();
+			} else if (!file.renameTo(stored)) {
+				throw new IOException("Could not move file to store: " + file);
+			}
+			mPreferences
+					.edit()
+					.putString(KEY_VERSION_PREFIX + versionGuid, hash)
+					.putLong(KEY_USED_PREFIX + hash,
+							System.currentTimeMillis()).apply();
+			evict(hash);
+			return stored;
+		}
+	}
+
+	private void evict(String keepHash) {
+		File dir = getDir();
+		if (dir == null) {
+			return;
+		}
+		final Map<String, ?> all = mPreferences.getAll();
+		List<String> hashes = new ArrayList<String>();
+		for (String key : all.keySet()) {
+			if (key.startsWith(KEY_USED_PREFIX)) {
+				hashes.add(key.substring(KEY_USED_PREFIX.length()));
+			}
+		}
+		long used = 0;
+		for (String hash : hashes) {
+			used += new File(dir, hash + APK_SUFFIX).length();
+		}
+		long budget = mAppPreferences.getApkStoreBudgetBytes();
+		if (used > budget) {
+			Collections.sort(hashes, new Comparator<String>() {
+
+				@Override
+				public int compare(String lhs, String rhs) {
+					long left = (Long) all.get(KEY_USED_PREFIX + lhs);
+					long right = (Long) all.get(KEY_USED_PREFIX + rhs);
+					return left < right ? -1 : (left == right ? 0 : 1);
+				}
+			});
+			Editor editor = mPreferences.edit();
+			for (String hash : hashes) {
+				if (used <= budget) {
+					break;
+				}
+				if (hash.equals(keepHash)) {
+					continue;
+				}
+				File file = new File(dir, hash + APK_SUFFIX);
+				long length = file.length();
+				file.delete();
+				used -= length;
+				editor.remove(KEY_USED_PREFIX + hash);
+				for (Map.Entry<String, ?> entry : all.entrySet()) {
+					if (entry.getKey().startsWith(KEY_VERSION_PREFIX)
+							&& hash.equals(entry.getValue())) {
+						editor.remove(entry.getKey());
+					}
+				}
+				mMetrics.mEvictions.incrementAndGet();
+				mMetrics.mEvictedBytes.addAndGet(length);
+			}
+			editor.apply();
+		}
+		mMetrics.mUsedBytes.set(used);
+		if (BuildConfig.DEBUG) {
+			Log.v(TAG, String.format("APK store: %s", mMetrics));
+		}
+	}
+
+	/**
+	 * @return SHA-256 of stored file content
+	 */
+	public static String getHash(File storedFile) {
+		String name = storedFile.getName();
+		return name.substring(0, name.length() - APK_SUFFIX.length());
+	}
+
+	private File getDir() {
+		return mContext.getExternalFilesDir(DIR);
+	}
+
+	private File getDirOrThrow() throws IOException {
+		File dir = getDir();
+		if (dir == null) {
+			throw new IOException("External storage is not available");
+		}
+		return dir;
+	}
+
+	private static String sha256(File file) throws IOException {
+		MessageDigest digest = ApkVerifier.newDigest();
+		InputStream input = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = input.read(buffer)) >= 0) {
+				digest.update(buffer, 0, read);
+			}
+		} finally {
+			input.close();
+		}
+		return ApkVerifier.toHex(digest.digest());
+	}
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Checks downloaded APK without reading it again.
+ *
+ * Content digest is computed while file is downloaded and only compared here.
+ * Signature check memory-maps only end of central directory, central directory
+ * and APK Signing Block, so it costs a few reads whatever size of APK is. It
+ * checks that file is a complete, signed APK. Certificates are verified later
+ * by package installer.
+ */
+public class ApkVerifier {
+
+	public static class InvalidApk extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public InvalidApk(String message) {
+			super(message);
+		}
+	}
+
+	private static final int EOCD_SIGNATURE = 0x06054b50;
+	private static final int EOCD_SIZE = 22;
+	private static final int MAX_COMMENT_SIZE = 0xffff;
+	private static final int CD_ENTRY_SIGNATURE = 0x02014b50;
+	private static final int CD_ENTRY_SIZE = 46;
+	private static final byte[] SIGNING_BLOCK_MAGIC = "APK Sig Block 42"
+			.getBytes(Charset.forName("US-ASCII"));
+	private static final int SIGNATURE_SCHEME_V2_ID = 0x7109871a;
+	private static final int SIGNATURE_SCHEME_V3_ID = 0xf05368c0;
+
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static String toHex(byte[] digest) {
+		StringBuilder hex = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			hex.append(String.format("%02x", b & 0xff));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * @param expected
+	 *            published SHA-256 of APK or null if not known
+	 * @param actual
+	 *            SHA-256 computed while APK was downloaded
+	 */
+	public static void verifyDigest(String expected, String actual)
+			throws InvalidApk {
+		if (expected != null && !expected.equalsIgnoreCase(actual)) {
+			throw new InvalidApk(String.format(
+					"SHA-256 of APK %s does not match published %s", actual,
+					expected));
+		}
+	}
+
+	/**
+	 * Checks that APK is complete zip signed with JAR signature or APK
+	 * Signature Scheme v2/v3
+	 */
+	public static void verifySigned(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			long size = channel.size();
+			if (size < EOCD_SIZE) {
+				throw new InvalidApk("APK is too short");
+			}
+			long tailStart = Math.max(0, size - EOCD_SIZE - MAX_COMMENT_SIZE);
+			MappedByteBuffer tail = map(channel, tailStart, size - tailStart);
+			int eocd = findEndOfCentralDirectory(tail);
+			if (eocd < 0) {
+				throw new InvalidApk("APK end of central directory not found");
+			}
+			long cdSize = tail.getInt(eocd + 12) & 0xffffffffL;
+			long cdOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+			if (cdOffset + cdSize != tailStart + eocd) {
+				throw new InvalidApk("APK central directory is not valid");
+			}
+			if (hasSignatureSchemeBlock(channel, cdOffset)) {
+				return;
+			}
+			if (hasJarSignature(map(channel, cdOffset, cdSize))) {
+				return;
+			}
+			throw new InvalidApk("APK is not signed");
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	private static MappedByteBuffer map(FileChannel channel, long position,
+			long size) throws IOException {
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+				position, size);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	private static int findEndOfCentralDirectory(MappedByteBuffer tail) {
+		for (int i = tail.limit() - EOCD_SIZE; i >= 0; i--) {
+			if (tail.getInt(i) != EOCD_SIGNATURE) {
+				continue;
+			}
+			int commentLength = tail.getShort(i + 20) & 0xffff;
+			if (i + EOCD_SIZE + commentLength == tail.limit()) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean hasSignatureSchemeBlock(FileChannel channel,
+			long cdOffset) throws IOException {
+		// block ends with its size (uint64) and magic (16 bytes) just before
+		// central directory
+		if (cdOffset < 32) {
+			return false;
+		}
+		MappedByteBuffer footer = map(channel, cdOffset - 24, 24);
+		for (int i = 0; i < SIGNING_BLOCK_MAGIC.length; i++) {
+			if (footer.get(8 + i) != SIGNING_BLOCK_MAGIC[i]) {
+				return false;
+			}
+		}
+		long blockSize = footer.getLong(0);
+		long blockStart = cdOffset - blockSize - 8;
+		if (blockSize < 24 || blockStart < 0) {
+			throw new InvalidApk("APK Signing Block size is not valid");
+		}
+		// mapped without trailing size and magic, so pairs end with mapping
+		MappedByteBuffer block = map(channel, blockStart, blockSize - 16);
+		if (block.getLong(0) != blockSize) {
+			throw new InvalidApk("APK Signing Block sizes do not match");
+		}
+		// id-value pairs: uint64 length, uint32 id, value
+		long end = block.limit();
+		long position = 8;
+		while (position < end) {
+			if (end - position < 12) {
+				throw new InvalidApk("APK Signing Block is truncated");
+			}
+			long length = block.getLong((int) position);
+			if (length < 4 || length > end - position - 8) {
+				throw new InvalidApk("APK Signing Block entry is not valid");
+			}
+			int id = block.getInt((int) position + 8);
+			if (id == SIGNATURE_SCHEME_V2_ID || id == SIGNATURE_SCHEME_V3_ID) {
+				return true;
+			}
+			position += 8 + length;
+		}
+		return false;
+	}
+
+	private static boolean hasJarSignature(MappedByteBuffer cd)
+			throws InvalidApk {
+		boolean signatureFile = false;
+		boolean signatureBlock = false;
+		int position = 0;
+		Charset utf8 = Charset.forName("UTF-8");
+		while (position < cd.limit()) {
+			if (cd.limit() - position < CD_ENTRY_SIZE
+					|| cd.getInt(position) != CD_ENTRY_SIGNATURE) {
+				throw new InvalidApk("APK central directory entry is not valid");
+			}
+			int nameLength = cd.getShort(position + 28) & 0xffff;
+			int extraLength = cd.getShort(position + 30) & 0xffff;
+			int commentLength = cd.getShort(position + 32) & 0xffff;
+			if (position + CD_ENTRY_SIZE + nameLength > cd.limit()) {
+				throw new InvalidApk("APK central directory entry is not valid");
+			}
+			byte[] nameBytes = new byte[nameLength];
+			cd.position(position + CD_ENTRY_SIZE);
+			cd.get(nameBytes);
+			String name = new String(nameBytes, utf8).toUpperCase();
+			if (name.startsWith("META-INF/") && name.indexOf('/', 9) < 0) {
+				if (name.endsWith(".SF")) {
+					signatureFile = true;
+				} else if (name.endsWith(".RSA") || name.endsWith(".DSA")
+						|| name.endsWith(".EC")) {
+					signatureBlock = true;
+				}
+			}
+			position += CD_ENTRY_SIZE + nameLength + extraLength
+					+ commentLength;
+		}
+		return signatureFile && signatureBlock;
+	}
+
+	private ApkVerifier() {
+	}
+
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.appjma.appdeployer.BuildConfig;
+import com.google.android.gms.auth.GoogleAuthException;
+
+/**
+ * Keeps last token in memory, so sync tasks do not ask source for every
+ * request.
+ *
+ * Concurrent requests while token is fetched wait for the same fetch. Token
+ * that is close to its end of life is still returned, but new one is fetched
+ * in background. Source does not tell when token expires, so token is treated
+ * as expired after fixed lifetime that is shorter than lifetime of Google
+ * OAuth tokens, and {@link #invalidateToken(String)} drops it when server
+ * rejects it earlier.
+ */
+public class CachedTokenProvider implements TokenProvider {
+
+	public static class Options {
+		private long mLifetimeMs = 15 * 60 * 1000;
+		private long mRefreshAheadMs = 3 * 60 * 1000;
+
+		/**
+		 * @param lifetimeMs
+		 *            time after token is not returned any more
+		 */
+		public Options setLifetimeMs(long lifetimeMs) {
+			mLifetimeMs = lifetimeMs;
+			return this;
+		}
+
+		/**
+		 * @param refreshAheadMs
+		 *            time before end of lifetime when token is refreshed in
+		 *            background
+		 */
+		public Options setRefreshAheadMs(long refreshAheadMs) {
+			mRefreshAheadMs = refreshAheadMs;
+			return this;
+		}
+	}
+
+	public static class Metrics {
+		private final AtomicLong mHits = new AtomicLong();
+		private final AtomicLong mFetches = new AtomicLong();
+		private final AtomicLong mShared = new AtomicLong();
+		private final AtomicLong mRefreshes = new AtomicLong();
+		private final AtomicLong mInvalidations = new AtomicLong();
+
+		public long getHits() {
+			return mHits.get();
+		}
+
+		/**
+		 * @return number of requests that waited for token from source
+		 */
+		public long getFetches() {
+			return mFetches.get();
+		}
+
+		/**
+		 * @return number of requests that joined fetch already in progress
+		 */
+		public long getShared() {
+			return mShared.get();
+		}
+
+		/**
+		 * @return number of background refreshes before token expired
+		 */
+		public long getRefreshes() {
+			return mRefreshes.get();
+		}
+
+		public long getInvalidations() {
+			return mInvalidations.get();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("hits: %d, fetches: %d, shared: %d, "
+					+ "refreshes: %d, invalidations: %d", getHits(),
+					getFetches(), getShared(), getRefreshes(),
+					getInvalidations());
+		}
+	}
+
+	private class Fetch extends FutureTask<String> {
+		private final String mFetchAccountName;
+
+		public Fetch(final String accountName, final Intent callback) {
+			super(new Callable<String>() {
+
+				@Override
+				public String call() throws Exception {
+					return mSource.getToken(accountName, callback);
+				}
+			});
+			mFetchAccountName = accountName;
+		}
+
+		@Override
+		protected void done() {
+			String token;
+			try {
+				token = get();
+			} catch (ExecutionException e) {
+				if (BuildConfig.DEBUG) {
+					Log.v(TAG, "Could not fetch token", e.getCause());
+				}
+				token = null;
+			} catch (InterruptedException e) {
+				// never happens, task is already done
+				token = null;
+			}
+			synchronized (CachedTokenProvider.this) {
+				// newer fetch could be started for other account
+				if (mInFlight != this) {
+					return;
+				}
+				mInFlight = null;
+				if (token != null) {
+					mAccountName = mFetchAccountName;
+					mToken = token;
+					mFetchedAt = SystemClock.elapsedRealtime();
+				}
+			}
+		}
+	}
+
+	private static final String TAG = "CachedTokenProvider";
+
+	private final TokenProvider mSource;
+	private final Options mOptions;
+	private final Metrics mMetrics = new Metrics();
+	private final ExecutorService mExecutor = new ThreadPoolExecutor(0, 1,
+			30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	private String mAccountName;
+	private String mToken;
+	private long mFetchedAt;
+	private Fetch mInFlight;
+
+	public CachedTokenProvider(TokenProvider source, Options options) {
+		mSource = source;
+		mOptions = options;
+	}
+
+	public Metrics getMetrics() {
+		return mMetrics;
+	}
+
+	@Override
+	public String getToken(String accountName, Intent callback)
+			throws IOException, GoogleAuthException, UnsupportedDevice {
+		Fetch fetch;
+		boolean owner = false;
+		synchronized (this) {
+			if (mToken != null && accountName.equals(mAccountName)) {
+				long age = SystemClock.elapsedRealtime() - mFetchedAt;
+				if (age < mOptions.mLifetimeMs) {
+					mMetrics.mHits.incrementAndGet();
+					if (age >= mOptions.mLifetimeMs - mOptions.mRefreshAheadMs
+							&& mInFlight == null) {
+						mMetrics.mRefreshes.incrementAndGet();
+						mInFlight = new Fetch(accountName, callback);
+						mExecutor.execute(mInFlight);
+					}
+					return mToken;
+				}
+			}
+			if (mInFlight != null
+					&& accountName.equals(mInFlight.mFetchAccountName)) {
+				mMetrics.mShared.incrementAndGet();
+				fetch = mInFlight;
+			} else {
+				mMetrics.mFetches.incrementAndGet();
+				fetch = new Fetch(accountName, callback);
+				mInFlight = fetch;
+				owner = true;
+			}
+		}
+		if (owner) {
+			fetch.run();
+		}
+		try {
+			return fetch.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof GoogleAuthException) {
+				throw (GoogleAuthException) cause;
+			} else if (cause instanceof UnsupportedDevice) {
+				throw (UnsupportedDevice) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+
+	@Override
+	public void invalidateToken(String token) {
+		mMetrics.mInvalidations.incrementAndGet();
+		mSource.invalidateToken(token);
+		synchronized (this) {
+			if (token.equals(mToken)) {
+				mToken = null;
+				// fetch started before source forgot token could return it
+				mInFlight = null;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.service;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Applies binary patch that rebuilds new APK from previous one.
+ *
+ * Patch format (big endian):
+ *
+ * <pre>
+ * magic       8 bytes  "ADDELTA1"
+ * length      int64    length of result
+ * sha256      32 bytes digest of result
+ * operations, each starting with one byte:
+ *   1 COPY    int64 offset in base, int32 length
+ *   2 ADD     int32 length, length bytes of data
+ *   0 END
+ * </pre>
+ *
+ * Patch is read as a stream and base file through positioned reads, so only
+ * one buffer is held in memory whatever size of APK is. Result is hashed while
+ * it is written.
+ */
+public class DeltaPatch {
+
+	/**
+	 * Name of patch format used in A-IM/IM headers
+	 */
+	public static final String FORMAT = "appdeployer-delta";
+
+	public static class CorruptPatch extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public CorruptPatch(String message) {
+			super(message);
+		}
+
+		public CorruptPatch(String message, Throwable cause) {
+			super(message);
+			initCause(cause);
+		}
+	}
+
+	private static final byte[] MAGIC = new byte[] { 'A', 'D', 'D', 'E',
+			'L', 'T', 'A', '1' };
+	private static final int OP_END = 0;
+	private static final int OP_COPY = 1;
+	private static final int OP_ADD = 2;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Writes result of patch to target
+	 *
+	 * @return SHA-256 of result
+	 * @throws CorruptPatch
+	 *             if patch is not valid or result does not match its digest,
+	 *             target is removed then
+	 */
+	public static byte[] apply(InputStream patch, File base, File target)
+			throws IOException {
+		boolean success = false;
+		try {
+			byte[] digest = applyOrThrow(patch, base, target);
+			success = true;
+			return digest;
+		} finally {
+			if (!success) {
+				target.delete();
+			}
+		}
+	}
+
+	private static byte[] applyOrThrow(InputStream patch, File base, File target)
+			throws IOException {
+		try {
+			return applyPatch(patch, base, target);
+		} catch (EOFException e) {
+			// patch is read with readFully(), so truncated patch ends here
+			throw new CorruptPatch("Patch is truncated", e);
+		}
+	}
+
+	private static byte[] applyPatch(InputStream patch, File base,
+			File target) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(
+				patch, BUFFER_SIZE));
+		byte[] magic = new byte[MAGIC.length];
+		input.readFully(magic);
+		if (!Arrays.equals(MAGIC, magic)) {
+			throw new CorruptPatch("Unknown patch format");
+		}
+		long length = input.readLong();
+		byte[] expectedDigest = new byte[32];
+		input.readFully(expectedDigest);
+
+		MessageDigest digest = ApkVerifier.newDigest();
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		FileInputStream baseInput = new FileInputStream(base);
+		FileOutputStream output = new FileOutputStream(target);
+		try {
+			FileChannel baseChannel = baseInput.getChannel();
+			FileChannel outputChannel = output.getChannel();
+			long baseLength = baseChannel.size();
+			long written = 0;
+			while (true) {
+				int op;
+				try {
+					op = input.readUnsignedByte();
+				} catch (EOFException e) {
+					throw new CorruptPatch("Patch ended without END operation");
+				}
+				if (op == OP_END) {
+					break;
+				} else if (op == OP_COPY) {
+					long offset = input.readLong();
+					int count = input.readInt();
+					if (offset < 0 || count < 0 || offset + count > baseLength) {
+						throw new CorruptPatch("Copy outside of base file");
+					}
+					while (count > 0) {
+						buffer.clear();
+						buffer.limit(Math.min(count, BUFFER_SIZE));
+						int read = baseChannel.read(buffer, offset);
+						if (read <= 0) {
+							throw new CorruptPatch("Base file is shorter than expected");
+						}
+						write(outputChannel, buffer, digest);
+						offset += read;
+						count -= read;
+						written += read;
+					}
+				} else if (op == OP_ADD) {
+					int count = input.readInt();
+					if (count < 0) {
+						throw new CorruptPatch("Negative length of data");
+					}
+					while (count > 0) {
+						int read = Math.min(count, BUFFER_SIZE);
+						input.readFully(buffer.array(), 0, read);
+						buffer.clear();
+						buffer.limit(read);
+						buffer.position(read);
+						write(outputChannel, buffer, digest);
+						count -= read;
+						written += read;
+					}
+				} else {
+					throw new CorruptPatch("Unknown operation: " + op);
+				}
+				if (written > length) {
+					throw new CorruptPatch("Result is longer than declared");
+				}
+			}
+			if (written != length) {
+				throw new CorruptPatch("Result is shorter than declared");
+			}
+			if (!MessageDigest.isEqual(expectedDigest, digest.digest())) {
+				throw new CorruptPatch("Digest of result does not match");
+			}
+			outputChannel.force(false);
+			return expectedDigest;
+		} finally {
+			output.close();
+			baseInput.close();
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer,
+			MessageDigest digest) throws IOException {
+		buffer.flip();
+		digest.update(buffer.array(), 0, buffer.limit());
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private DeltaPatch() {
+	}
+
+}
@@ -16,11 +16,17 @@
 package com.appjma.appdeployer.service;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.json.JSONException;
 
+import android.content.Context;
 import android.content.Intent;
 import android.content.UriMatcher;
 import android.net.Uri;
@@ -30,26 +36,21 @@ import android.util.Log;
 import com.appjma.appdeployer.AppPreferences;
 import com.appjma.appdeployer.BuildConfig;
 import com.appjma.appdeployer.content.AppContract;
+import com.appjma.appdeployer.content.ChangeNotificationScope;
 import com.appjma.appdeployer.receiver.AuthReceiver;
 import com.appjma.appdeployer.service.Downloader.TooManyRecords;
 import com.appjma.appdeployer.service.Downloader.UnauthorizedResponseCode;
+import com.appjma.appdeployer.service.TokenProvider.UnsupportedDevice;
 import com.appunite.auhttp.HTTPUtils.WrongHttpResponseCode;
 import com.appunite.syncer.AUSyncerStatus;
 import com.appunite.syncer.AbsDownloadService;
+import com.appunite.syncer.DownloadHelper;
 import com.google.android.gms.auth.GoogleAuthException;
-import com.google.android.gms.auth.GoogleAuthUtil;
 import com.google.android.gms.auth.UserRecoverableAuthException;
 import com.google.android.gms.auth.UserRecoverableNotifiedException;
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.GooglePlayServicesUtil;
 
 public class DownloadService extends AbsDownloadService {
 
-	private static class UnsupportedDevice extends Exception {
-		private static final long serialVersionUID = 1L;
-
-	}
-
 	public static final String ACTION_SYNC = "com.appjma.appdeployer.ACTION_SYNC";
 
 	private static final UriMatcher sURIMatcher = new UriMatcher(
@@ -59,15 +60,47 @@ public class DownloadService extends AbsDownloadService {
 	private static final int APP_ID = 1;
 	private static final int APP_VERSIONS = 2;
 	private static final int DOWNLOAD = 3;
+	private static final int ALL_APP_VERSIONS = 4;
 
 	private static final String TAG = "DownloadService";
 
 	public static final String STATE_TOKEN_INVALID = "token_invalid";
 	public static final String STATE_REAUTHORIZE = "reauthorize";
 	public static final String STATE_UNSUPPORTED_DEVICE = "unsupported_device";
+	/**
+	 * Server failed recently and endpoint is not requested until backoff
+	 * time passes, see {@link #getRetryDelayMs(Uri)}
+	 */
+	public static final String STATE_BACKOFF = "backoff";
+	/**
+	 * Sync stopped to give place to sync of higher priority, it is requested
+	 * again and continues later, so it is not an error shown to user
+	 */
+	public static final String STATE_PREEMPTED = "preempted";
+
+	/**
+	 * Optional int extra of sync bundle with one of SyncScheduler priorities.
+	 * Without it forced syncs are {@link SyncScheduler#PRIORITY_USER} and
+	 * others {@link SyncScheduler#PRIORITY_BACKGROUND}.
+	 */
+	public static final String EXTRA_PRIORITY = "priority";
+
+	private static CachedTokenProvider sTokenProvider;
 
+	/**
+	 * Sync requests that wait for service, so running sync of lower priority
+	 * could give place to them
+	 */
+	private static final SyncScheduler sScheduler = new SyncScheduler();
+	/**
+	 * Start time of last successful sync of all apps or all app versions, by
+	 * uri
+	 */
+	private static final Map<Uri, Long> sWideSyncs = new HashMap<Uri, Long>();
 
 	private AppPreferences mAppPreferences;
+	private CachedTokenProvider mTokenProvider;
+	private FreshnessPolicy mFreshnessPolicy;
 
 	static {
 		sURIMatcher.addURI(AppContract.AUTHORITY,
@@ -79,6 +112,8 @@ public class DownloadService extends AbsDownloadService {
 		sURIMatcher.addURI(AppContract.AUTHORITY,
 				AppContract.AppVersions.CONTENT_PATH + "/#/"
 						+ AppContract.Download.CONTENT_PATH, DOWNLOAD);
+		sURIMatcher.addURI(AppContract.AUTHORITY,
+				AppContract.AppVersions.CONTENT_PATH, ALL_APP_VERSIONS);
 	}
 
 	@Override
@@ -86,11 +121,208 @@ public class DownloadService extends AbsDownloadService {
 		super.onCreate();
 
 		mAppPreferences = new AppPreferences(this);
+		mTokenProvider = getTokenProvider(this);
+		mFreshnessPolicy = FreshnessPolicy.getInstance(this);
+	}
+
+	static synchronized CachedTokenProvider getTokenProvider(
+			Context context) {
+		if (sTokenProvider == null) {
+			sTokenProvider = new CachedTokenProvider(new GoogleTokenProvider(
+					context), new CachedTokenProvider.Options());
+		}
+		return sTokenProvider;
+	}
+
+	/**
+	 * Bundle for sync requests of given priority
+	 */
+	public static Bundle priorityBundle(int priority) {
+		Bundle bundle = new Bundle();
+		bundle.putInt(EXTRA_PRIORITY, priority);
+		return bundle;
+	}
+
+	/**
+	 * Starts sync through helper of screen, running sync of lower priority
+	 * stops and continues after it
+	 */
+	public static void startSync(DownloadHelper helper, Uri uri, int priority,
+			boolean withForce) {
+		sScheduler.onRequested(uri, priority);
+		helper.startDownloading(priorityBundle(priority), withForce);
+	}
+
+	/**
+	 * Sends sync request to service, running sync of lower priority stops and
+	 * continues after it
+	 */
+	public static void requestSync(Context context, Uri uri, Bundle bundle,
+			boolean withForce) {
+		sScheduler.onRequested(uri, getPriority(bundle, withForce));
+		DownloadHelper.startAsyncDownload(context, ACTION_SYNC, uri, bundle,
+				withForce);
 	}
 
+	public static SyncScheduler.Metrics getSchedulerMetrics() {
+		return sScheduler.getMetrics();
+	}
+
+	/**
+	 * @return time after sync of uri will be sent to server again or 0
+	 */
+	public static long getRetryDelayMs(Uri uri) {
+		String endpoint = getEndpoint(uri);
+		if (endpoint == null) {
+			return 0;
+		}
+		return SyncBackoff.getInstance().peekDelayMs(endpoint, true);
+	}
+
+	/**
+	 * @return name of API endpoint that is used by sync of uri or null if
+	 *         failures of sync should not delay following requests
+	 */
+	private static String getEndpoint(Uri uri) {
+		switch (sURIMatcher.match(uri)) {
+		case APPS:
+		case APP_ID:
+			return "apps";
+		case APP_VERSIONS:
+		case ALL_APP_VERSIONS:
+			return "app_versions";
+		default:
+			return null;
+		}
+	}
+
+	private static int getPriority(Bundle bundle, boolean withForce) {
+		if (bundle != null && bundle.containsKey(EXTRA_PRIORITY)) {
+			return bundle.getInt(EXTRA_PRIORITY);
+		}
+		return withForce ? SyncScheduler.PRIORITY_USER
+				: SyncScheduler.PRIORITY_BACKGROUND;
+	}
+
+	/**
+	 * Syncs are handled one at a time. Sync of single app or its versions that
+	 * was queued behind sync of all of them is skipped by
+	 * {@link #forceDownload(Uri, long, long)}, see {@link #getWideSync(Uri)}.
+	 */
 	@Override
 	protected AUSyncerStatus onHandleUri(Uri uri, Bundle bundle,
 			boolean withForce) {
+		SyncScheduler.Ticket ticket = sScheduler.start(uri,
+				getPriority(bundle, withForce));
+		return handleUriScheduled(uri, bundle, withForce, ticket);
+	}
+
+	private void noteSynced(Uri uri, boolean changed) {
+		long ttl = mFreshnessPolicy.onSynced(uri, changed);
+		if (BuildConfig.DEBUG) {
+			Log.v(TAG, String.format("%s %s, fresh for %d s", uri,
+					changed ? "changed" : "not changed", ttl / 1000));
+		}
+	}
+
+	private static void noteWideSync(Uri uri, long startedAt) {
+		synchronized (sWideSyncs) {
+			sWideSyncs.put(uri, startedAt);
+		}
+	}
+
+	/**
+	 * @return start time of last successful sync that covered uri or 0
+	 */
+	private static long getWideSync(Uri uri) {
+		Uri wideUri;
+		switch (sURIMatcher.match(uri)) {
+		case APP_ID:
+			wideUri = AppContract.Apps.CONTENT_URI;
+			break;
+		case APP_VERSIONS:
+			wideUri = AppContract.AppVersions.CONTENT_URI;
+			break;
+		default:
+			return 0;
+		}
+		synchronized (sWideSyncs) {
+			Long startedAt = sWideSyncs.get(wideUri);
+			return startedAt == null ? 0 : startedAt;
+		}
+	}
+
+	private AUSyncerStatus handleUriScheduled(Uri uri, Bundle bundle,
+			boolean withForce, SyncScheduler.Ticket ticket) {
+		if (sURIMatcher.match(uri) == DOWNLOAD) {
+			// files are only enqueued here, in-app downloads run in
+			// ApkDownloadService so they do not block sync requests
+			return handleUriInScope(uri, bundle, null);
+		}
+		String endpoint = getEndpoint(uri);
+		SyncBackoff backoff = SyncBackoff.getInstance();
+		// user could retry during backoff, but not while circuit is open
+		if (backoff.startRequest(endpoint, withForce) > 0) {
+			if (BuildConfig.DEBUG) {
+				Log.v(TAG, String.format("Not syncing %s, backoff: %s", uri,
+						backoff));
+			}
+			return AUSyncerStatus.statusCustomError(STATE_BACKOFF);
+		}
+		long serverFailures = backoff.getServerFailures();
+		AUSyncerStatus status = null;
+		try {
+			status = handleUriInScope(uri, bundle, ticket);
+		} finally {
+			if (status == null) {
+				// trial slot is not kept by crashed sync
+				backoff.onAbandoned(endpoint);
+			}
+		}
+		if (!status.isError()) {
+			backoff.onSuccess(endpoint);
+		} else if (status.isCustomIssue()) {
+			// authorization problems and preempted syncs are not failures
+			// of server
+			backoff.onAbandoned(endpoint);
+		} else if (backoff.getServerFailures() != serverFailures) {
+			backoff.onFailure(endpoint);
+		} else if (status.isNoInternetConnection()) {
+			backoff.onUnreachable(endpoint);
+		} else {
+			// client side errors, e.g. response that could not be parsed
+			backoff.onAbandoned(endpoint);
+		}
+		return status;
+	}
+
+	private AUSyncerStatus handleUriInScope(Uri uri, Bundle bundle,
+			SyncScheduler.Ticket ticket) {
+		// loaders reload once after sync instead of after every batch
+		ChangeNotificationScope.begin();
+		AUSyncerStatus status;
+		try {
+			status = handleUri(uri, bundle, ticket);
+		} finally {
+			ChangeNotificationScope.end();
+		}
+		if (BuildConfig.DEBUG) {
+			Log.v(TAG, String.format("HTTP connections after %s: %s", uri,
+					SharedHttpClient.getMetrics()));
+			Log.v(TAG, String.format("HTTP validators after %s: %s", uri,
+					HttpValidatorCache.getInstance(this)));
+			Log.v(TAG, String.format("APK store after %s: %s", uri,
+					ApkStore.getInstance(this).getMetrics()));
+			Log.v(TAG, String.format("Tokens after %s: %s", uri,
+					mTokenProvider.getMetrics()));
+			Log.v(TAG, String.format("Scheduler after %s: %s", uri,
+					sScheduler.getMetrics()));
+		}
+		return status;
+	}
+
+	private AUSyncerStatus handleUri(Uri uri, Bundle bundle,
+			SyncScheduler.Ticket ticket) {
 		// to enable HTTP logging run:
 		// adb shell setprop log.tag.org.apache.http VERBOSE
 		// adb shell setprop log.tag.org.apache.http.wire VERBOSE
@@ -103,18 +335,26 @@ public class DownloadService extends AbsDownloadService {
 		// application
 		int match = sURIMatcher.match(uri);
 		Downloader downloader = new Downloader(this);
+		downloader.setTicket(ticket);
+		long startedAt = System.currentTimeMillis();
 		try {
 			switch (match) {
 			case APPS: {
 				String token = authenticate(uri, bundle);
 				downloader.syncApps(token, uri);
+				// local changes sent to server are not changes of resource
+				int changed = downloader.getChangedRows();
 				downloader.downloadApps(token);
+				noteWideSync(uri, startedAt);
+				noteSynced(uri, downloader.getChangedRows() > changed);
 				return AUSyncerStatus.statusSuccess();
 			}
 			case APP_ID: {
 				String token = authenticate(uri, bundle);
 				downloader.syncApps(token, uri);
+				int changed = downloader.getChangedRows();
 				downloader.downloadApp(uri, token);
+				noteSynced(uri, downloader.getChangedRows() > changed);
 				return AUSyncerStatus.statusSuccess();
 			}
 			case APP_VERSIONS: {
@@ -123,6 +363,7 @@ public class DownloadService extends AbsDownloadService {
 				String appId = pathSegments.get(1);
 				String token = authenticate(uri, bundle);
 				downloader.downloadAppVersions(appId, token);
+				noteSynced(uri, downloader.getChangedRows() > 0);
 				return AUSyncerStatus.statusSuccess();
 			}
 			case DOWNLOAD: {
@@ -132,12 +373,34 @@ public class DownloadService extends AbsDownloadService {
 				downloader.downloadFile(appVersion, token);
 				return AUSyncerStatus.statusSuccess();
 			}
+			case ALL_APP_VERSIONS: {
+				String token = authenticate(uri, bundle);
+				downloader.downloadAllAppVersions(token);
+				noteWideSync(uri, startedAt);
+				noteSynced(uri, downloader.getChangedRows() > 0);
+				return AUSyncerStatus.statusSuccess();
+			}
 			default:
 				throw new IllegalArgumentException();
 			}
 		} catch (ClientProtocolException e) {
 			logError(uri, e);
 			return AUSyncerStatus.statusInternalIssue();
+		} catch (ApkVerifier.InvalidApk e) {
+			logError(uri, e);
+			return AUSyncerStatus.statusInternalIssue();
+		} catch (ConnectionPoolTimeoutException e) {
+			// all connections are used by this application
+			logError(uri, e);
+			return AUSyncerStatus.statusInternalIssue();
+		} catch (ConnectTimeoutException e) {
+			logError(uri, e);
+			SyncBackoff.getInstance().onTimeout();
+			return AUSyncerStatus.statusNoInternetConnection();
+		} catch (SocketTimeoutException e) {
+			logError(uri, e);
+			SyncBackoff.getInstance().onTimeout();
+			return AUSyncerStatus.statusNoInternetConnection();
 		} catch (IOException e) {
 			logError(uri, e);
 			return AUSyncerStatus.statusNoInternetConnection();
@@ -161,20 +424,38 @@ public class DownloadService extends AbsDownloadService {
 			return AUSyncerStatus.statusCustomError(STATE_REAUTHORIZE);
 		} catch (UnauthorizedResponseCode e) {
 			logError(uri, e);
-			GoogleAuthUtil.invalidateToken(getApplicationContext(), e.getToken());
+			mTokenProvider.invalidateToken(e.getToken());
 			return AUSyncerStatus.statusCustomError(STATE_TOKEN_INVALID);
 		} catch (UnsupportedDevice e) {
 			logError(uri, e);
 			return AUSyncerStatus.statusCustomError(STATE_UNSUPPORTED_DEVICE);
+		} catch (Downloader.Preempted e) {
+			if (BuildConfig.DEBUG) {
+				Log.v(TAG, String.format("Sync of %s gives place to sync of "
+						+ "higher priority", uri));
+			}
+			// forced, because sync that ended is taken as fresh
+			Bundle again = bundle == null ? new Bundle() : new Bundle(bundle);
+			again.putInt(EXTRA_PRIORITY, ticket.getPriority());
+			requestSync(this, uri, again, true);
+			return AUSyncerStatus.statusCustomError(STATE_PREEMPTED);
 		}
 	}
 
 	private String authenticate(Uri uri, Bundle bundle) throws IOException,
 			GoogleAuthException, UnsupportedDevice {
-		if (GooglePlayServicesUtil.isGooglePlayServicesAvailable(this) != ConnectionResult.SUCCESS) {
-			throw new UnsupportedDevice();
-		}
-		String accountName = mAppPreferences.getAccountName();
+		return authenticate(mAppPreferences, mTokenProvider, uri, bundle);
+	}
+
+	/**
+	 * @param uri
+	 *            sync that is started again when user resolves authentication
+	 *            problem
+	 */
+	static String authenticate(AppPreferences preferences,
+			TokenProvider tokenProvider, Uri uri, Bundle bundle)
+			throws IOException, GoogleAuthException, UnsupportedDevice {
+		String accountName = preferences.getAccountName();
 		if (accountName == null) {
 			throw new GoogleAuthException("No authentification");
 		}
@@ -182,8 +463,7 @@ public class DownloadService extends AbsDownloadService {
 				.putExtra(AuthReceiver.ACTION_AUTHENTICATED_EXTRA_URI, uri)
 				.putExtra(AuthReceiver.ACTION_AUTHENTICATED_EXTRA_BUNDLE,
 						bundle);
-		return GoogleAuthUtil.getTokenWithNotification(this, accountName,
-				Downloader.SCOPE, null, callback);
+		return tokenProvider.getToken(accountName, callback);
 	}
 
 	private void logError(Uri uri, Exception e) {
@@ -198,7 +478,14 @@ public class DownloadService extends AbsDownloadService {
 	@Override
 	protected boolean forceDownload(Uri uri, long lastSuccessMillis,
 			long currentTimeMillis) {
-		return currentTimeMillis - lastSuccessMillis > 10000;
+		// queued sync of single app is fresh after sync of all apps
+		lastSuccessMillis = Math.max(lastSuccessMillis, getWideSync(uri));
+		boolean stale = mFreshnessPolicy.isStale(uri, lastSuccessMillis,
+				currentTimeMillis);
+		if (!stale) {
+			sScheduler.onSkipped(uri);
+		}
+		return stale;
 	}
 
 	@Override
@@ -208,6 +495,7 @@ public class DownloadService extends AbsDownloadService {
 		case APPS:
 		case APP_ID:
 		case APP_VERSIONS:
+		case ALL_APP_VERSIONS:
 			return true;
 		case DOWNLOAD:
 			return false;
@@ -228,6 +516,8 @@ public class DownloadService extends AbsDownloadService {
 			return 1 * 60 * 1000; // 1 min
 		case DOWNLOAD:
 			return 1 * 1000; // 1s
+		case ALL_APP_VERSIONS:
+			return 5 * 60 * 1000; // 5 min
 		default:
 			throw new IllegalArgumentException();
 		}
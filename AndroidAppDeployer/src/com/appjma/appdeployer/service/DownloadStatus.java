@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.service;
+
+import android.app.DownloadManager;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.appjma.appdeployer.content.AppContract;
+
+/**
+ * Keeps {@link DownloadManager} status of app version downloads in
+ * app_versions, so version list does not have to ask DownloadManager.
+ */
+public class DownloadStatus {
+
+	/**
+	 * Remembers that download was enqueued for app version
+	 */
+	public static void setEnqueued(ContentResolver cr, String appVersionId,
+			long downloadId) {
+		Uri uri = Uri.withAppendedPath(AppContract.AppVersions.CONTENT_URI,
+				appVersionId);
+		update(cr, uri, null, null, String.valueOf(downloadId),
+				DownloadManager.STATUS_PENDING);
+	}
+
+	/**
+	 * Sets status of download made without {@link DownloadManager}
+	 */
+	public static void setStatus(ContentResolver cr, String appVersionId,
+			int status) {
+		Uri uri = Uri.withAppendedPath(AppContract.AppVersions.CONTENT_URI,
+				appVersionId);
+		update(cr, uri, null, null, null, status);
+	}
+
+	/**
+	 * Reads status of download from {@link DownloadManager} and stores it in
+	 * app version that started it
+	 */
+	public static void update(Context context, long downloadId) {
+		DownloadManager downloadManager = (DownloadManager) context
+				.getSystemService(Context.DOWNLOAD_SERVICE);
+		Integer status = null;
+		Cursor cursor = downloadManager.query(new DownloadManager.Query()
+				.setFilterById(downloadId));
+		try {
+			if (cursor.moveToFirst()) {
+				status = cursor.getInt(cursor
+						.getColumnIndexOrThrow(DownloadManager.COLUMN_STATUS));
+			}
+		} finally {
+			cursor.close();
+		}
+		String id = String.valueOf(downloadId);
+		// removed downloads are forgotten
+		update(context.getContentResolver(),
+				AppContract.AppVersions.CONTENT_URI,
+				AppContract.AppVersions.DOWNLOAD_MANAGER_ID + " = ?",
+				new String[] { id }, status == null ? null : id, status);
+	}
+
+	private static void update(ContentResolver cr, Uri uri, String selection,
+			String[] selectionArgs, String downloadId, Integer status) {
+		Cursor cursor = cr.query(uri, new String[] {
+				AppContract.AppVersions.APP_VERSION_ID,
+				AppContract.AppVersions.UPDATED_AT }, selection,
+				selectionArgs, null);
+		try {
+			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor
+					.moveToNext()) {
+				ContentValues values = new ContentValues();
+				values.put(AppContract.AppVersions.DOWNLOAD_MANAGER_ID,
+						downloadId);
+				values.put(AppContract.AppVersions.DOWNLOAD_STATUS, status);
+				// otherwise it would be set to now and change versions order
+				values.put(AppContract.AppVersions.UPDATED_AT,
+						cursor.getLong(1));
+				cr.update(Uri.withAppendedPath(
+						AppContract.AppVersions.CONTENT_URI,
+						cursor.getString(0)), values, null, null);
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private DownloadStatus() {
+	}
+
+}
@@ -15,9 +15,29 @@
  */
 package com.appjma.appdeployer.service;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
@@ -28,9 +48,12 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.protocol.HTTP;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -39,11 +62,16 @@ import android.app.DownloadManager;
 import android.app.DownloadManager.Request;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
+import android.os.SystemClock;
+import android.util.JsonReader;
+import android.util.Log;
 
 import com.appjma.appdeployer.AppPreferences;
+import com.appjma.appdeployer.BuildConfig;
 import com.appjma.appdeployer.content.AppContract;
 import com.appunite.auhttp.HTTPUtils;
 import com.appunite.auhttp.HTTPUtils.GetBuilder;
@@ -57,10 +85,24 @@ public class Downloader {
 		private static final long serialVersionUID = 1L;
 
 		public TooManyRecords() {
-			super("Too many records while quering");
+			super("Server returned already visited page");
 		}
 	}
 
+	/**
+	 * Sync stopped because request of higher priority waits, what was
+	 * already written stays valid
+	 */
+	public static class Preempted extends Exception {
+		private static final long serialVersionUID = 1L;
+
+	}
+
+	private static class InvalidCursor extends Exception {
+		private static final long serialVersionUID = 1L;
+
+	}
+
 	public static class UnauthorizedResponseCode extends Exception {
 		private int mStatusCode;
 		private final String mToken;
@@ -84,33 +126,83 @@ public class Downloader {
 
 	}
 
+	private static final String TAG = "Downloader";
+
 	private static final String BASE_API_URL = "https://app-deployer.appspot.com/_ah/api/appdeployer/v1";
 	// private static final String BASE_API_URL =
 	// "http://192.168.111.149:8888/_ah/api/appdeployer/v1";
-	private static final int MAX_LAST_TOTKEN_REPETANCE = 10;
+	private static final int SYNC_THREADS = 4;
+	// Page size of apps list is adapted to network, it starts from size
+	// that was hardcoded before
+	private static final int MAX_APPS_PAGE_BYTES = 256 * 1024;
+	private static final PageSizePolicy sAppsPageSizePolicy = new PageSizePolicy(
+			5, 10, 200, 2000, MAX_APPS_PAGE_BYTES);
+	private static final SegmentedDownloader.Options sSegmentedDownloaderOptions = new SegmentedDownloader.Options();
+	private static final int HTTP_IM_USED = 226;
+	private static final long CURSOR_OVERLAP_MS = 1000;
+	private static final String APK_MIME_TYPE = "application/vnd.android.package-archive";
 	public static final String SCOPE = "oauth2:https://www.googleapis.com/auth/userinfo.email";
 
-	private ParserResult mParserResult;
+	private ProviderParserResult mParserResult;
 	private Parser mParser;
-	private HttpClient mHttpClient;
 	private ContentResolver mCr;
 	private AppPreferences mAppPreferences;
+	private HttpValidatorCache mValidatorCache;
 	private Context mContext;
+	private SyncScheduler.Ticket mTicket;
 
 	public Downloader(Context context) {
 		mParserResult = new ProviderParserResult(context);
 		mParser = new Parser(mParserResult);
 		mCr = context.getContentResolver();
 		mAppPreferences = new AppPreferences(context);
+		mValidatorCache = HttpValidatorCache.getInstance(context);
 		mContext = context;
 	}
 
+	/**
+	 * @param ticket
+	 *            ticket of sync that is asked between pages whether request
+	 *            of higher priority waits, or null
+	 */
+	public void setTicket(SyncScheduler.Ticket ticket) {
+		mTicket = ticket;
+	}
+
+	/**
+	 * @return number of rows inserted, updated or deleted by this downloader,
+	 *         it could be used to check whether sync changed anything
+	 */
+	public int getChangedRows() {
+		return mParserResult.getChangedRows();
+	}
+
+	/**
+	 * Called only from thread that coordinates sync
+	 */
+	private void checkPreempted() throws Preempted {
+		if (mTicket != null && mTicket.shouldYield()) {
+			throw new Preempted();
+		}
+	}
+
 	private HttpClient getHttpClient() {
-		if (mHttpClient != null) {
-			return mHttpClient;
+		return SharedHttpClient.getInstance(mContext);
+	}
+
+	private HttpClient getDownloadHttpClient() {
+		return SharedHttpClient.getDownloadInstance(mContext);
+	}
+
+	private static void consumeContentQuietly(HttpResponse response) {
+		HttpEntity entity = response.getEntity();
+		if (entity == null) {
+			return;
+		}
+		try {
+			entity.consumeContent();
+		} catch (IOException ignore) {
 		}
-		mHttpClient = new DefaultHttpClient();
-		return mHttpClient;
 	}
 
 	public void syncApps(String token, Uri uri) throws ClientProtocolException,
@@ -119,6 +211,7 @@ public class Downloader {
 		String selection = AppContract.Apps.SYNCED + " = 0";
 		String[] PROJECTION = new String[] { AppContract.Apps.APP_ID,
 				AppContract.Apps.GUID, AppContract.Apps.NAME, AppContract.Apps.DELETED};
+		List<SyncAppTask> tasks = new ArrayList<SyncAppTask>();
 		Cursor cursor = mCr.query(uri, PROJECTION,
 				selection, null, null);
 		try {
@@ -131,19 +224,120 @@ public class Downloader {
 				if (deleted == true) {
 					checkState(guid != null,
 							"Row could not be marked as deleted if it is not synced");
-					deleteApp(token, id, guid);
-				} else if (guid == null) {
-					insertApp(token, id, name);
-				} else {
-					updateApp(token, id, guid, name);
 				}
+				tasks.add(new SyncAppTask(token, id, guid, name, deleted));
 			}
 		} finally {
 			cursor.close();
 		}
+		if (tasks.isEmpty()) {
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+				SYNC_THREADS, tasks.size()));
+		try {
+			List<Future<JSONObject>> futures = new ArrayList<Future<JSONObject>>(
+					tasks.size());
+			for (SyncAppTask task : tasks) {
+				futures.add(executor.submit(task));
+			}
+			Exception failure = null;
+			try {
+				for (int i = 0; i < tasks.size(); i++) {
+					SyncAppTask task = tasks.get(i);
+					try {
+						JSONObject json = getResult(futures.get(i));
+						if (task.mDeleted) {
+							mParserResult.deleteApp(task.mId);
+						} else {
+							mParser.parseApp(task.mId, json);
+						}
+					} catch (IOException e) {
+						failure = reportSyncFailure(task.mId, failure, e);
+					} catch (JSONException e) {
+						failure = reportSyncFailure(task.mId, failure, e);
+					} catch (WrongHttpResponseCode e) {
+						failure = reportSyncFailure(task.mId, failure, e);
+					} catch (UnauthorizedResponseCode e) {
+						failure = reportSyncFailure(task.mId, failure, e);
+					} catch (RuntimeException e) {
+						failure = reportSyncFailure(task.mId, failure, e);
+					}
+				}
+				// apps already pushed have to be stored even if others
+				// failed, otherwise they would be created again on server;
+				// rows that failed stay not synced and will be retried
+				mParserResult.apply();
+			} finally {
+				mParserResult.clear();
+			}
+			if (failure != null) {
+				rethrow(failure);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static Exception reportSyncFailure(String id, Exception failure,
+			Exception e) {
+		Log.w(TAG, String.format("Could not sync app: %s", id), e);
+		if (failure == null || e instanceof UnauthorizedResponseCode) {
+			// Unauthorized response is reported first because it needs token
+			// invalidation
+			return e;
+		}
+		return failure;
 	}
 
-	private void deleteApp(String token, String id, String guid)
+	private static void rethrow(Exception e) throws IOException,
+			JSONException, WrongHttpResponseCode, UnauthorizedResponseCode {
+		if (e instanceof IOException) {
+			throw (IOException) e;
+		} else if (e instanceof JSONException) {
+			throw (JSONException) e;
+		} else if (e instanceof WrongHttpResponseCode) {
+			throw (WrongHttpResponseCode) e;
+		} else if (e instanceof UnauthorizedResponseCode) {
+			throw (UnauthorizedResponseCode) e;
+		} else if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		}
+		throw new RuntimeException(e);
+	}
+
+	private class SyncAppTask implements Callable<JSONObject> {
+
+		private final String mToken;
+		private final String mId;
+		private final String mGuid;
+		private final String mName;
+		private final boolean mDeleted;
+
+		public SyncAppTask(String token, String id, String guid, String name,
+				boolean deleted) {
+			mToken = token;
+			mId = id;
+			mGuid = guid;
+			mName = name;
+			mDeleted = deleted;
+		}
+
+		@Override
+		public JSONObject call() throws IOException, JSONException,
+				WrongHttpResponseCode, UnauthorizedResponseCode {
+			if (mDeleted) {
+				deleteApp(mToken, mGuid);
+				return null;
+			} else if (mGuid == null) {
+				return insertApp(mToken, mName);
+			} else {
+				return updateApp(mToken, mGuid, mName);
+			}
+		}
+	}
+
+	private void deleteApp(String token, String guid)
 			throws ClientProtocolException, IOException,
 			UnauthorizedResponseCode, WrongHttpResponseCode {
 		String url = new GetBuilder(BASE_API_URL).appendPathSegment("apps")
@@ -151,23 +345,22 @@ public class Downloader {
 		HttpDelete request = new HttpDelete(url);
 		setupDefaultHeaders(request, token);
 		HttpResponse response = getHttpClient().execute(request);
-		int statusCode = response.getStatusLine().getStatusCode();
-		if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
-			throw new UnauthorizedResponseCode(response, token);
-		}
-		if (statusCode != HttpStatus.SC_OK && statusCode != HttpStatus.SC_NOT_FOUND) {
-			// if not (deleted or already deleted)
-			throw new WrongHttpResponseCode(response);
-		}
 		try {
-			mParserResult.deleteApp(id);
-			mParserResult.apply();
+			int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
+				throw new UnauthorizedResponseCode(response, token);
+			}
+			if (statusCode != HttpStatus.SC_OK
+					&& statusCode != HttpStatus.SC_NOT_FOUND) {
+				// if not (deleted or already deleted)
+				throw new WrongHttpResponseCode(response);
+			}
 		} finally {
-			mParserResult.clear();
+			consumeContentQuietly(response);
 		}
 	}
 
-	private void updateApp(String token, String id, String guid, String name)
+	private JSONObject updateApp(String token, String guid, String name)
 			throws ClientProtocolException, IOException,
 			UnauthorizedResponseCode, WrongHttpResponseCode, JSONException {
 		String url = new GetBuilder(BASE_API_URL).appendPathSegment("apps")
@@ -182,23 +375,21 @@ public class Downloader {
 		}
 		setupDefaultHeaders(request, token);
 		HttpResponse response = getHttpClient().execute(request);
-		int statusCode = response.getStatusLine().getStatusCode();
-		if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
-			throw new UnauthorizedResponseCode(response, token);
-		}
-		if (statusCode != HttpStatus.SC_OK) {
-			throw new WrongHttpResponseCode(response);
-		}
-		JSONObject json = HTTPUtils.getJsonFromResponse(response);
 		try {
-			mParser.parseApp(id, json);
-			mParserResult.apply();
+			int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
+				throw new UnauthorizedResponseCode(response, token);
+			}
+			if (statusCode != HttpStatus.SC_OK) {
+				throw new WrongHttpResponseCode(response);
+			}
+			return HTTPUtils.getJsonFromResponse(response);
 		} finally {
-			mParserResult.clear();
+			consumeContentQuietly(response);
 		}
 	}
 
-	private void insertApp(String token, String id, String name)
+	private JSONObject insertApp(String token, String name)
 			throws WrongHttpResponseCode, UnauthorizedResponseCode,
 			ClientProtocolException, IOException, JSONException {
 		String url = new GetBuilder(BASE_API_URL).appendPathSegment("apps")
@@ -213,63 +404,276 @@ public class Downloader {
 		}
 		setupDefaultHeaders(request, token);
 		HttpResponse response = getHttpClient().execute(request);
-		int statusCode = response.getStatusLine().getStatusCode();
-		if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
-			throw new UnauthorizedResponseCode(response, token);
+		try {
+			int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
+				throw new UnauthorizedResponseCode(response, token);
+			}
+			if (statusCode != HttpStatus.SC_OK) {
+				throw new WrongHttpResponseCode(response);
+			}
+			return HTTPUtils.getJsonFromResponse(response);
+		} finally {
+			consumeContentQuietly(response);
 		}
-		if (statusCode != HttpStatus.SC_OK) {
-			throw new WrongHttpResponseCode(response);
+	}
+
+	public void downloadApps(String token) throws ClientProtocolException,
+			IOException, JSONException, TooManyRecords, WrongHttpResponseCode,
+			UnauthorizedResponseCode, Preempted {
+		long updatedSince = mAppPreferences.getAppsUpdatedSince();
+		if (updatedSince != 0) {
+			try {
+				downloadApps(token, updatedSince);
+				return;
+			} catch (InvalidCursor e) {
+				// Server could not resolve changes since our cursor so we
+				// fall back to full sync
+			}
 		}
-		JSONObject json = HTTPUtils.getJsonFromResponse(response);
 		try {
-			mParser.parseApp(id, json);
-			mParserResult.apply();
+			downloadApps(token, 0);
+		} catch (InvalidCursor e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @param updatedSince
+	 *            if 0 all apps are downloaded and apps that are not on the
+	 *            server anymore are removed, otherwise only apps changed or
+	 *            deleted since given time are downloaded
+	 */
+	private void downloadApps(String token, long updatedSince)
+			throws ClientProtocolException, IOException, JSONException,
+			TooManyRecords, WrongHttpResponseCode, UnauthorizedResponseCode,
+			InvalidCursor, Preempted {
+		boolean fullSync = updatedSince == 0;
+		mParser.resetNewestUpdatedAt();
+		Set<String> seenTokens = new HashSet<String>();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		// all pages are written at once at the end, so interrupted sync
+		// does not remove apps or move cursors
+		mParserResult.beginSession();
+		Future<AppsPage> future = null;
+		try {
+			future = executor.submit(new AppsPageTask(token, updatedSince,
+					null));
+			boolean firstPage = true;
+			while (future != null) {
+				AppsPage page = getResult(future);
+				future = null;
+				if (page.mInvalidCursor) {
+					throw new InvalidCursor();
+				}
+				String nextToken;
+				if (page.mCached != null) {
+					nextToken = page.mCached.getExtra();
+				} else {
+					try {
+						parseApps(mParser, page.mResponse);
+					} finally {
+						consumeContentQuietly(page.mResponse);
+					}
+					if (fullSync && firstPage) {
+						mParserResult.clearOldApps();
+					}
+					nextToken = mParserResult.getAppsNextToken();
+				}
+				if (nextToken != null) {
+					if (!seenTokens.add(nextToken)) {
+						// server returned already visited page
+						throw new TooManyRecords();
+					}
+					// session is dropped, so next try starts from first
+					// page, spilled rows stay valid
+					checkPreempted();
+					// next page is downloaded while this one is written
+					future = executor.submit(new AppsPageTask(token,
+							updatedSince, nextToken));
+				}
+				if (page.mCached == null) {
+					if (page.mValidators != null) {
+						mParserResult.addValidators(page.mValidators
+								.setExtra(nextToken));
+					}
+					mParserResult.apply();
+				}
+				firstPage = false;
+			}
+			long newestUpdatedAt = mParser.getNewestUpdatedAt();
+			if (newestUpdatedAt > updatedSince) {
+				mParserResult.setAppsUpdatedSince(newestUpdatedAt);
+			}
+			mParserResult.endSession();
 		} finally {
 			mParserResult.clear();
+			executor.shutdownNow();
+			releasePage(future);
 		}
 	}
 
-	public void downloadApps(String token) throws ClientProtocolException,
-			IOException, JSONException, TooManyRecords, WrongHttpResponseCode,
-			UnauthorizedResponseCode {
-		String nextToken = null;
-		int repetance = 0;
-		while (true) {
+	/**
+	 * Releases connection of page that was downloaded but will not be parsed
+	 */
+	private static void releasePage(Future<AppsPage> future) {
+		if (future == null || !future.isDone() || future.isCancelled()) {
+			return;
+		}
+		try {
+			AppsPage page = future.get();
+			if (page.mResponse != null) {
+				consumeContentQuietly(page.mResponse);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException ignore) {
+		}
+	}
+
+	private static class AppsPage {
+		private HttpResponse mResponse;
+		private HttpValidatorCache.Entry mValidators;
+		private HttpValidatorCache.Entry mCached;
+		private boolean mInvalidCursor;
+	}
+
+	/**
+	 * Downloads page of apps to memory, so it can be done in background while
+	 * previous page is parsed and applied. Only first
+	 * {@link #MAX_APPS_PAGE_BYTES} are read ahead, rest of bigger pages is
+	 * parsed from the stream.
+	 */
+	private class AppsPageTask implements Callable<AppsPage> {
+
+		private final String mToken;
+		private final long mUpdatedSince;
+		private final String mNextToken;
+
+		public AppsPageTask(String token, long updatedSince, String nextToken) {
+			mToken = token;
+			mUpdatedSince = updatedSince;
+			mNextToken = nextToken;
+		}
+
+		@Override
+		public AppsPage call() throws IOException, WrongHttpResponseCode,
+				UnauthorizedResponseCode {
+			boolean fullSync = mUpdatedSince == 0;
+			int pageSize = sAppsPageSizePolicy.getPageSize();
 			String url = new GetBuilder(BASE_API_URL)
 					.appendPathSegment("apps")
-					.addParam("limit", "10")
-					.addParamIf(nextToken != null, "next_token", nextToken)
+					.addParam("limit", String.valueOf(pageSize))
+					.addParamIf(mNextToken != null, "next_token", mNextToken)
+					.addParamIf(!fullSync, "updated_since",
+							getUpdatedSinceParam(mUpdatedSince))
 					.addParam("fields",
-							"items(created_at,guid,name,token,updated_at),next_token")
+							"items(created_at,deleted,guid,name,token,updated_at),next_token")
 					.build();
 			HttpGet request = new HttpGet(url);
-			setupDefaultHeaders(request, token);
+			setupDefaultHeaders(request, mToken);
+			// Full sync pages are always downloaded because every app has
+			// to be touched before clearOldApps()
+			HttpValidatorCache.Entry cached = fullSync ? null
+					: mValidatorCache.setupRequest(request);
+			AppsPage page = new AppsPage();
+			long start = SystemClock.elapsedRealtime();
 			HttpResponse response = getHttpClient().execute(request);
-			int statusCode = response.getStatusLine().getStatusCode();
-			if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
-				throw new UnauthorizedResponseCode(response, token);
-			}
-			if (statusCode != HttpStatus.SC_OK) {
-				throw new WrongHttpResponseCode(response);
-			}
-			JSONObject json = HTTPUtils.getJsonFromResponse(response);
 			try {
-				mParser.parseApps(json);
-				if (nextToken == null) {
-					mParserResult.clearOldApps();
+				if (mValidatorCache.isNotModified(response, cached)) {
+					page.mCached = cached;
+					return page;
 				}
-				mParserResult.apply();
+				int statusCode = response.getStatusLine().getStatusCode();
+				if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
+					throw new UnauthorizedResponseCode(response, mToken);
+				}
+				if (!fullSync && isInvalidCursorResponse(statusCode)) {
+					page.mInvalidCursor = true;
+					return page;
+				}
+				if (statusCode != HttpStatus.SC_OK) {
+					throw new WrongHttpResponseCode(response);
+				}
+				if (!fullSync) {
+					page.mValidators = mValidatorCache.getValidators(request,
+							response);
+				}
+				HttpEntity entity = prefetchEntity(response.getEntity(),
+						MAX_APPS_PAGE_BYTES);
+				response.setEntity(entity);
+				sAppsPageSizePolicy.onPageLoaded(pageSize,
+						SystemClock.elapsedRealtime() - start,
+						entity.isStreaming() ? MAX_APPS_PAGE_BYTES + 1
+								: entity.getContentLength());
+				page.mResponse = response;
+				return page;
 			} finally {
-				mParserResult.clear();
+				if (page.mResponse == null) {
+					consumeContentQuietly(response);
+				}
 			}
-			nextToken = mAppPreferences.getAppsNextToken();
-			if (nextToken == null) {
-				return;
+		}
+	}
+
+	/**
+	 * Reads up to maxBytes of entity to memory.
+	 *
+	 * @return buffered entity if whole content was read, otherwise streaming
+	 *         entity that returns read bytes followed by rest of the stream
+	 */
+	private static HttpEntity prefetchEntity(final HttpEntity entity,
+			int maxBytes) throws IOException {
+		final InputStream content = entity.getContent();
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		byte[] bytes = new byte[8 * 1024];
+		int read = 0;
+		while (buffer.size() < maxBytes
+				&& (read = content.read(bytes, 0,
+						Math.min(bytes.length, maxBytes - buffer.size()))) != -1) {
+			buffer.write(bytes, 0, read);
+		}
+		if (read == -1) {
+			content.close();
+			ByteArrayEntity buffered = new ByteArrayEntity(
+					buffer.toByteArray());
+			buffered.setContentType(entity.getContentType());
+			buffered.setContentEncoding(entity.getContentEncoding());
+			return buffered;
+		}
+		final InputStream prefetched = new ByteArrayInputStream(
+				buffer.toByteArray());
+		return new HttpEntityWrapper(entity) {
+
+			@Override
+			public InputStream getContent() throws IOException {
+				return new SequenceInputStream(prefetched, content);
 			}
-			if (repetance++ > MAX_LAST_TOTKEN_REPETANCE) {
-				throw new TooManyRecords();
+
+			@Override
+			public boolean isRepeatable() {
+				return false;
 			}
-		}
+
+			@Override
+			public boolean isStreaming() {
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Server timestamps have one second resolution and rows could be written
+	 * later in the same second as newest row we got, so the last second is
+	 * requested again. Rows that are received twice are matched by guid.
+	 */
+	private static String getUpdatedSinceParam(long updatedSince) {
+		return String.valueOf(updatedSince - CURSOR_OVERLAP_MS);
+	}
+
+	private static boolean isInvalidCursorResponse(int statusCode) {
+		return statusCode == HttpStatus.SC_GONE
+				|| statusCode == HttpStatus.SC_BAD_REQUEST;
 	}
 
 	private void setupDefaultHeaders(HttpRequestBase request, String token) {
@@ -296,9 +700,21 @@ public class Downloader {
 				.build();
 		HttpGet request = new HttpGet(url);
 		setupDefaultHeaders(request, token);
+		HttpValidatorCache.Entry cached = mValidatorCache.setupRequest(request);
 		HttpResponse response = getHttpClient().execute(request);
-		JSONObject json = HTTPUtils.getJsonFromResponse(response);
+		HttpValidatorCache.Entry validators;
+		JSONObject json;
+		try {
+			if (mValidatorCache.isNotModified(response, cached)) {
+				return;
+			}
+			validators = mValidatorCache.getValidators(request, response);
+			json = HTTPUtils.getJsonFromResponse(response);
+		} finally {
+			consumeContentQuietly(response);
+		}
 		try {
+			mParserResult.addValidators(validators);
 			mParser.parseApp(null, json);
 			mParserResult.apply();
 		} finally {
@@ -322,7 +738,8 @@ public class Downloader {
 	}
 
 	public void downloadAppVersions(String appId, String token)
-			throws ClientProtocolException, IOException, JSONException {
+			throws ClientProtocolException, IOException, JSONException,
+			WrongHttpResponseCode, UnauthorizedResponseCode {
 		String appGuid = getAppGuid(Uri.withAppendedPath(
 				AppContract.Apps.CONTENT_URI, appId));
 		if (appGuid == null) {
@@ -330,22 +747,236 @@ public class Downloader {
 			// yet synced to server - this mean that we can not download it
 			return;
 		}
+		try {
+			fetchAppVersions(mParser, mParserResult, token, appId, appGuid);
+			mParserResult.apply();
+		} finally {
+			mParserResult.clear();
+		}
+	}
+
+	/**
+	 * Parses changes of app versions to result without applying them
+	 */
+	private void fetchAppVersions(Parser parser, ProviderParserResult result,
+			String token, String appId, String appGuid)
+			throws ClientProtocolException, IOException, JSONException,
+			WrongHttpResponseCode, UnauthorizedResponseCode {
+		long updatedSince = mAppPreferences.getAppVersionsUpdatedSince(appGuid);
+		if (updatedSince != 0) {
+			try {
+				fetchAppVersions(parser, result, token, appId, appGuid,
+						updatedSince);
+				return;
+			} catch (InvalidCursor e) {
+				// Server could not resolve changes since our cursor so we
+				// fall back to full sync
+			}
+		}
+		try {
+			fetchAppVersions(parser, result, token, appId, appGuid, 0);
+		} catch (InvalidCursor e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void fetchAppVersions(Parser parser, ProviderParserResult result,
+			String token, String appId, String appGuid, long updatedSince)
+			throws ClientProtocolException, IOException, JSONException,
+			WrongHttpResponseCode, UnauthorizedResponseCode, InvalidCursor {
+		boolean fullSync = updatedSince == 0;
 		String url = new GetBuilder(BASE_API_URL).appendPathSegment("apps")
 				.appendPathSegment(appGuid).appendPathSegment("versions")
-				.build();
+				.addParamIf(!fullSync, "updated_since",
+						getUpdatedSinceParam(updatedSince)).build();
 		HttpGet request = new HttpGet(url);
 		setupDefaultHeaders(request, token);
+		HttpValidatorCache.Entry cached = mValidatorCache.setupRequest(request);
 		HttpResponse response = getHttpClient().execute(request);
-		JSONObject json = HTTPUtils.getJsonFromResponse(response);
 		try {
-			mParser.parseAppVersions(appId, json);
-			mParserResult.clearOldAppVersions(appId);
-			mParserResult.apply();
+			if (mValidatorCache.isNotModified(response, cached)) {
+				return;
+			}
+			int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
+				throw new UnauthorizedResponseCode(response, token);
+			}
+			if (!fullSync && isInvalidCursorResponse(statusCode)) {
+				throw new InvalidCursor();
+			}
+			if (statusCode != HttpStatus.SC_OK) {
+				throw new WrongHttpResponseCode(response);
+			}
+			result.addValidators(mValidatorCache.getValidators(request,
+					response));
+			parser.resetNewestUpdatedAt();
+			parseAppVersions(parser, appId, response);
+			if (fullSync) {
+				result.clearOldAppVersions(appId);
+			}
+			long newestUpdatedAt = parser.getNewestUpdatedAt();
+			if (newestUpdatedAt > updatedSince) {
+				result.setAppVersionsUpdatedSince(appGuid, newestUpdatedAt);
+			}
 		} finally {
-			mParserResult.clear();
+			consumeContentQuietly(response);
+		}
+	}
+
+	/**
+	 * Fetches versions of every synced app using {@link #SYNC_THREADS}
+	 * parallel requests. Responses are parsed by workers and applied by
+	 * calling thread in one write session, so whole sync takes about as long
+	 * as the slowest requests instead of sum of all of them.
+	 *
+	 * @throws Preempted
+	 *             if request of higher priority waits, versions of apps that
+	 *             were already fetched are written then
+	 */
+	public void downloadAllAppVersions(String token)
+			throws ClientProtocolException, IOException, JSONException,
+			WrongHttpResponseCode, UnauthorizedResponseCode, Preempted {
+		String selection = AppContract.Apps.GUID + " IS NOT NULL AND "
+				+ AppContract.Apps.DELETED + " == 0";
+		Cursor cursor = mCr.query(AppContract.Apps.CONTENT_URI, new String[] {
+				AppContract.Apps.APP_ID, AppContract.Apps.GUID }, selection,
+				null, null);
+		ExecutorService executor = Executors.newFixedThreadPool(SYNC_THREADS);
+		try {
+			CompletionService<ProviderParserResult> completionService = new ExecutorCompletionService<ProviderParserResult>(
+					executor);
+			int tasks = 0;
+			try {
+				for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor
+						.moveToNext()) {
+					String appId = cursor.getString(0);
+					String appGuid = cursor.getString(1);
+					completionService.submit(new AppVersionsTask(token, appId,
+							appGuid));
+					tasks++;
+				}
+			} finally {
+				cursor.close();
+			}
+			mParserResult.beginSession();
+			boolean preempted = false;
+			try {
+				for (int done = 1; done <= tasks && !preempted; done++) {
+					ProviderParserResult result = takeResult(completionService);
+					mParserResult.addAll(result);
+					mParserResult.apply();
+					// versions of every app are complete, so they are
+					// written and next try gets them as not modified
+					preempted = done < tasks && mTicket != null
+							&& mTicket.shouldYield();
+				}
+				mParserResult.endSession();
+			} finally {
+				mParserResult.clear();
+			}
+			if (preempted) {
+				throw new Preempted();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static <T> T takeResult(CompletionService<T> completionService)
+			throws IOException, JSONException, WrongHttpResponseCode,
+			UnauthorizedResponseCode {
+		Future<T> future;
+		try {
+			future = completionService.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		return getResult(future);
+	}
+
+	private static <T> T getResult(Future<T> future) throws IOException,
+			JSONException, WrongHttpResponseCode, UnauthorizedResponseCode {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			} else if (cause instanceof Exception) {
+				rethrow((Exception) cause);
+			}
+			throw new RuntimeException(cause);
 		}
 	}
 
+	private class AppVersionsTask implements Callable<ProviderParserResult> {
+
+		private final String mToken;
+		private final String mAppId;
+		private final String mAppGuid;
+
+		public AppVersionsTask(String token, String appId, String appGuid) {
+			mToken = token;
+			mAppId = appId;
+			mAppGuid = appGuid;
+		}
+
+		@Override
+		public ProviderParserResult call() throws IOException, JSONException,
+				WrongHttpResponseCode, UnauthorizedResponseCode {
+			ProviderParserResult result = new ProviderParserResult(mContext);
+			Parser parser = new Parser(result);
+			fetchAppVersions(parser, result, mToken, mAppId, mAppGuid);
+			return result;
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private void parseApps(Parser parser, HttpResponse response)
+			throws IOException, JSONException {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			JsonReader reader = getJsonReader(response);
+			try {
+				parser.parseApps(reader);
+			} finally {
+				reader.close();
+			}
+		} else {
+			parser.parseApps(HTTPUtils.getJsonFromResponse(response));
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private void parseAppVersions(Parser parser, String appId,
+			HttpResponse response) throws IOException, JSONException {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			JsonReader reader = getJsonReader(response);
+			try {
+				parser.parseAppVersions(appId, reader);
+			} finally {
+				reader.close();
+			}
+		} else {
+			parser.parseAppVersions(appId,
+					HTTPUtils.getJsonFromResponse(response));
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private JsonReader getJsonReader(HttpResponse response) throws IOException {
+		HttpEntity entity = response.getEntity();
+		String charset = EntityUtils.getContentCharSet(entity);
+		if (charset == null) {
+			charset = HTTP.UTF_8;
+		}
+		return new JsonReader(new InputStreamReader(entity.getContent(),
+				charset));
+	}
+
 	private HttpEntity getJsonEntity(JSONObject object) {
 		StringEntity entity;
 		try {
@@ -357,18 +988,23 @@ public class Downloader {
 		}
 	}
 
-	public void downloadFile(String appVersion, String token) {
+	public void downloadFile(String appVersion, String token)
+			throws IOException, UnauthorizedResponseCode {
 		String url;
 		String name;
 		String version;
+		String guid;
+		String downloadManagerId;
 		Cursor cursor = mCr.query(
 				AppContract.AppVersions.CONTENT_URI.buildUpon()
 						.appendPath(appVersion)
 						.appendQueryParameter("limit", "1").build(),
 				new String[] { AppContract.AppVersions.VERSION,
 						AppContract.Apps.NAME,
-						AppContract.AppVersions.DOWNLOAD_URL }, null, null,
-				null);
+						AppContract.AppVersions.DOWNLOAD_URL,
+						AppContract.AppVersions.GUID,
+						AppContract.AppVersions.DOWNLOAD_MANAGER_ID }, null,
+				null, null);
 		try {
 			if (!cursor.moveToFirst()) {
 				return;
@@ -376,23 +1012,274 @@ public class Downloader {
 			version = cursor.getString(0);
 			name = cursor.getString(1);
 			url = cursor.getString(2);
-
+			guid = cursor.getString(3);
+			downloadManagerId = cursor.getString(4);
 		} finally {
 			cursor.close();
 		}
-		if (url == null) {
+		if (url == null || guid == null) {
+			return;
+		}
+		if (mAppPreferences.isInAppDownloads()) {
+			// downloads take long time and would block following syncs
+			DownloadStatus.setStatus(mCr, appVersion,
+					DownloadManager.STATUS_PENDING);
+			ApkDownloadService.start(mContext, appVersion);
+			return;
+		}
+		File stored = ApkStore.getInstance(mContext).get(guid);
+		if (stored != null) {
+			DownloadStatus.setStatus(mCr, appVersion,
+					DownloadManager.STATUS_SUCCESSFUL);
+			install(Uri.fromFile(stored));
 			return;
 		}
-		Uri uri = Uri.parse(url);
 		DownloadManager downloadManager = (DownloadManager) mContext
 				.getSystemService(Context.DOWNLOAD_SERVICE);
+		if (downloadManagerId != null
+				&& reuseDownload(downloadManager,
+						Long.parseLong(downloadManagerId))) {
+			return;
+		}
+		Uri uri = Uri.parse(url);
 		String title = String.format("%s (%s)", name, version);
 		Request request = new DownloadManager.Request(uri)
 				.addRequestHeader("Authorization", "Bearer " + token)
 				.setTitle(title).setVisibleInDownloadsUi(true)
-				.setMimeType("application/vnd.android.package-archive");
+				.setMimeType(APK_MIME_TYPE);
 		setRequestNotificationStatus(request);
-		downloadManager.enqueue(request);
+		long downloadId = downloadManager.enqueue(request);
+		DownloadStatus.setEnqueued(mCr, appVersion, downloadId);
+	}
+
+	/**
+	 * Does not start download if the same version is still downloaded or was
+	 * already downloaded by {@link DownloadManager}
+	 *
+	 * @return true if download was reused
+	 */
+	private boolean reuseDownload(DownloadManager downloadManager,
+			long downloadId) {
+		Cursor cursor = downloadManager.query(new DownloadManager.Query()
+				.setFilterById(downloadId));
+		try {
+			if (!cursor.moveToFirst()) {
+				return false;
+			}
+			int status = cursor.getInt(cursor
+					.getColumnIndexOrThrow(DownloadManager.COLUMN_STATUS));
+			if (status == DownloadManager.STATUS_PENDING
+					|| status == DownloadManager.STATUS_RUNNING
+					|| status == DownloadManager.STATUS_PAUSED) {
+				return true;
+			}
+			if (status != DownloadManager.STATUS_SUCCESSFUL) {
+				return false;
+			}
+			String localUri = cursor.getString(cursor
+					.getColumnIndexOrThrow(DownloadManager.COLUMN_LOCAL_URI));
+			if (localUri == null) {
+				return false;
+			}
+			Uri uri = Uri.parse(localUri);
+			if ("file".equals(uri.getScheme())
+					&& !new File(uri.getPath()).exists()) {
+				// removed by user
+				return false;
+			}
+			install(uri);
+			return true;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Downloads APK of app version without {@link DownloadManager}, it blocks
+	 * until whole file is downloaded and verified
+	 */
+	public void downloadFileInApp(String appVersion, String token)
+			throws IOException, UnauthorizedResponseCode {
+		String url;
+		String guid;
+		String appId;
+		String sha256;
+		Cursor cursor = mCr.query(
+				AppContract.AppVersions.CONTENT_URI.buildUpon()
+						.appendPath(appVersion)
+						.appendQueryParameter("limit", "1").build(),
+				new String[] { AppContract.AppVersions.DOWNLOAD_URL,
+						AppContract.AppVersions.GUID,
+						AppContract.AppVersions.APP_ID,
+						AppContract.AppVersions.SHA256 }, null, null, null);
+		try {
+			if (!cursor.moveToFirst()) {
+				return;
+			}
+			url = cursor.getString(0);
+			guid = cursor.getString(1);
+			appId = cursor.getString(2);
+			sha256 = cursor.getString(3);
+		} finally {
+			cursor.close();
+		}
+		if (url == null || guid == null) {
+			DownloadStatus.setStatus(mCr, appVersion,
+					DownloadManager.STATUS_FAILED);
+			return;
+		}
+		downloadFileInApp(appVersion, appId, guid, url, sha256, token);
+	}
+
+	/**
+	 * Downloads APK with {@link SegmentedDownloader} into {@link ApkStore},
+	 * partially downloaded file is continued on next try. If APK of previous
+	 * version is stored, only patch against it is requested.
+	 *
+	 * APK is hashed while it is downloaded and rejected before it is stored if
+	 * it does not match published SHA-256 or is not signed.
+	 */
+	private void downloadFileInApp(final String appVersion, String appId,
+			String guid, final String url, final String sha256, String token)
+			throws IOException, UnauthorizedResponseCode {
+		final Header[] headers = new Header[] { new BasicHeader(
+				"Authorization", "Bearer " + token) };
+		final SegmentedDownloader downloader = new SegmentedDownloader(
+				getDownloadHttpClient(), sSegmentedDownloaderOptions);
+		final File base = findDeltaBase(appId, appVersion);
+		DownloadStatus.setStatus(mCr, appVersion,
+				DownloadManager.STATUS_RUNNING);
+		boolean success = false;
+		File file;
+		try {
+			file = ApkStore.getInstance(mContext).fetch(guid,
+					new ApkStore.Fetcher() {
+
+						@Override
+						public String fetch(File file) throws IOException {
+							String hash = base == null ? null : downloadDelta(
+									url, headers, base, file);
+							if (hash == null) {
+								long start = SystemClock.elapsedRealtime();
+								MessageDigest digest = ApkVerifier.newDigest();
+								long length = downloader.download(url, headers,
+										file, null, digest);
+								hash = ApkVerifier.toHex(digest.digest());
+								if (BuildConfig.DEBUG) {
+									Log.v(TAG, String.format(
+											"Downloaded %d bytes of %s in %d ms",
+											length, appVersion,
+											SystemClock.elapsedRealtime()
+													- start));
+								}
+							}
+							try {
+								ApkVerifier.verifyDigest(sha256, hash);
+								ApkVerifier.verifySigned(file);
+							} catch (ApkVerifier.InvalidApk e) {
+								// corrupted file should not be resumed
+								file.delete();
+								throw e;
+							}
+							return hash;
+						}
+					});
+			// stored file is named by its hash
+			ApkVerifier.verifyDigest(sha256, ApkStore.getHash(file));
+			success = true;
+		} catch (SegmentedDownloader.WrongStatusCode e) {
+			if (e.getStatusCode() == HttpStatus.SC_UNAUTHORIZED) {
+				throw new UnauthorizedResponseCode(e.getResponse(), token);
+			}
+			throw e;
+		} finally {
+			DownloadStatus.setStatus(mCr, appVersion,
+					success ? DownloadManager.STATUS_SUCCESSFUL
+							: DownloadManager.STATUS_FAILED);
+		}
+		install(Uri.fromFile(file));
+	}
+
+	/**
+	 * @return stored APK of the newest other version of app or null
+	 */
+	private File findDeltaBase(String appId, String appVersion) {
+		ApkStore store = ApkStore.getInstance(mContext);
+		Cursor cursor = mCr.query(AppContract.AppVersions.CONTENT_URI,
+				new String[] { AppContract.AppVersions.GUID },
+				AppContract.AppVersions.APP_ID + " = ? AND "
+						+ AppContract.AppVersions.APP_VERSION_ID + " != ?",
+				new String[] { appId, appVersion },
+				AppContract.AppVersions.UPDATED_AT + " DESC");
+		try {
+			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor
+					.moveToNext()) {
+				String guid = cursor.getString(0);
+				File file = guid == null ? null : store.get(guid);
+				if (file != null) {
+					return file;
+				}
+			}
+			return null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Requests patch from base to APK at url (RFC 3229 delta encoding) and
+	 * applies it
+	 *
+	 * @return SHA-256 of result or null if server did not return patch or
+	 *         patch could not be read or applied and whole file has to be
+	 *         downloaded
+	 */
+	private String downloadDelta(String url, Header[] headers, File base,
+			File file) throws IOException {
+		HttpGet request = new HttpGet(url);
+		request.setHeaders(headers);
+		request.addHeader("A-IM", DeltaPatch.FORMAT);
+		request.addHeader("X-Delta-Base", ApkStore.getHash(base));
+		HttpResponse response = getDownloadHttpClient().execute(request);
+		int statusCode = response.getStatusLine().getStatusCode();
+		if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
+			request.abort();
+			throw new SegmentedDownloader.WrongStatusCode(response);
+		}
+		Header im = response.getFirstHeader("IM");
+		if (statusCode != HTTP_IM_USED || im == null
+				|| !DeltaPatch.FORMAT.equals(im.getValue())) {
+			// full body is not needed, it is downloaded in segments
+			request.abort();
+			return null;
+		}
+		HttpEntity entity = response.getEntity();
+		try {
+			byte[] digest = DeltaPatch.apply(entity.getContent(), base, file);
+			if (BuildConfig.DEBUG) {
+				Log.v(TAG, String.format(
+						"Applied patch of %d bytes instead of %d bytes file",
+						entity.getContentLength(), file.length()));
+			}
+			return ApkVerifier.toHex(digest);
+		} catch (InterruptedIOException e) {
+			throw e;
+		} catch (IOException e) {
+			// authorization was already checked, so patch is broken or
+			// connection dropped and whole file is still worth trying
+			if (BuildConfig.DEBUG) {
+				Log.w(TAG, "Could not apply patch, downloading whole file", e);
+			}
+			return null;
+		} finally {
+			request.abort();
+		}
+	}
+
+	private void install(Uri uri) {
+		Intent intent = new Intent(Intent.ACTION_VIEW).setDataAndType(uri,
+				APK_MIME_TYPE).addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+		mContext.startActivity(intent);
 	}
 
 	@SuppressWarnings("deprecation")
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.service;
+
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+
+/**
+ * Chooses for how long result of sync is fresh, separately for every uri.
+ *
+ * Time to live is learned from syncs: it is doubled after sync that did not
+ * change any row and halved after sync that did, within configured bounds. So
+ * resources that rarely change are requested rarely and resources that change
+ * often are synced as often as minimal time to live allows. Learned times are
+ * stored, so they survive restart of application; when there are too many of
+ * them the one synced longest ago is dropped.
+ */
+public class FreshnessPolicy {
+
+	public static class Options {
+		private long mMinTtlMs = 10 * 1000;
+		private long mMaxTtlMs = 60 * 60 * 1000;
+
+		/**
+		 * @param minTtlMs
+		 *            time to live of resources that changed on every sync,
+		 *            also initial time to live
+		 */
+		public Options setMinTtlMs(long minTtlMs) {
+			mMinTtlMs = minTtlMs;
+			return this;
+		}
+
+		public Options setMaxTtlMs(long maxTtlMs) {
+			mMaxTtlMs = maxTtlMs;
+			return this;
+		}
+	}
+
+	private static final String PREFERENCES_NAME = "freshness";
+	private static final int MAX_ENTRIES = 500;
+
+	private static final String FIELD_TTL = "ttl";
+	private static final String FIELD_SYNCED = "synced";
+
+	private static FreshnessPolicy sInstance;
+
+	public static synchronized FreshnessPolicy getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new FreshnessPolicy(context.getApplicationContext(),
+					new Options());
+		}
+		return sInstance;
+	}
+
+	private final SharedPreferences mPreferences;
+	private final Options mOptions;
+	private int mSize = -1;
+
+	private FreshnessPolicy(Context context, Options options) {
+		mPreferences = context.getSharedPreferences(PREFERENCES_NAME, 0);
+		mOptions = options;
+	}
+
+	public long getTtlMs(Uri uri) {
+		long ttl = mOptions.mMinTtlMs;
+		String value = mPreferences.getString(uri.toString(), null);
+		if (value != null) {
+			try {
+				ttl = new JSONObject(value).optLong(FIELD_TTL, ttl);
+			} catch (JSONException e) {
+				// broken entry is overwritten by next sync
+			}
+		}
+		return Math.max(mOptions.mMinTtlMs, Math.min(mOptions.mMaxTtlMs, ttl));
+	}
+
+	/**
+	 * @return true if result of last successful sync should be refreshed
+	 */
+	public boolean isStale(Uri uri, long lastSuccessMillis,
+			long currentTimeMillis) {
+		return currentTimeMillis - lastSuccessMillis > getTtlMs(uri);
+	}
+
+	/**
+	 * Called after successful sync of uri
+	 *
+	 * @param changed
+	 *            true if sync changed stored rows
+	 * @return new time to live of uri
+	 */
+	public synchronized long onSynced(Uri uri, boolean changed) {
+		long ttl = getTtlMs(uri);
+		ttl = changed ? Math.max(mOptions.mMinTtlMs, ttl / 2) : Math.min(
+				mOptions.mMaxTtlMs, ttl * 2);
+		String key = uri.toString();
+		JSONObject json = new JSONObject();
+		try {
+			json.put(FIELD_TTL, ttl);
+			json.put(FIELD_SYNCED, System.currentTimeMillis());
+		} catch (JSONException e) {
+			throw new RuntimeException(e);
+		}
+		if (mSize < 0) {
+			mSize = mPreferences.getAll().size();
+		}
+		SharedPreferences.Editor editor = mPreferences.edit();
+		if (!mPreferences.contains(key)) {
+			mSize += 1;
+			if (mSize > MAX_ENTRIES) {
+				// uris of removed apps are never synced again
+				evictOldest(editor);
+			}
+		}
+		editor.putString(key, json.toString()).apply();
+		return ttl;
+	}
+
+	private void evictOldest(SharedPreferences.Editor editor) {
+		String oldestKey = null;
+		long oldestSynced = Long.MAX_VALUE;
+		for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+			long synced = 0;
+			try {
+				synced = new JSONObject(String.valueOf(entry.getValue()))
+						.optLong(FIELD_SYNCED, 0);
+			} catch (JSONException e) {
+				// broken entries are removed first
+			}
+			if (synced < oldestSynced) {
+				oldestKey = entry.getKey();
+				oldestSynced = synced;
+			}
+		}
+		if (oldestKey != null) {
+			editor.remove(oldestKey);
+			mSize -= 1;
+		}
+	}
+
+}
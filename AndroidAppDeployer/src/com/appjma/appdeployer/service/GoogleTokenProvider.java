@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.service;
+
+import java.io.IOException;
+
+import android.content.Context;
+import android.content.Intent;
+
+import com.google.android.gms.auth.GoogleAuthException;
+import com.google.android.gms.auth.GoogleAuthUtil;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.GooglePlayServicesUtil;
+
+/**
+ * Gets tokens from Google Play Services. Every call is an IPC and could be a
+ * network round-trip, so it should be wrapped in {@link CachedTokenProvider}.
+ */
+public class GoogleTokenProvider implements TokenProvider {
+
+	private final Context mContext;
+
+	public GoogleTokenProvider(Context context) {
+		mContext = context.getApplicationContext();
+	}
+
+	@Override
+	public String getToken(String accountName, Intent callback)
+			throws IOException, GoogleAuthException, UnsupportedDevice {
+		if (GooglePlayServicesUtil.isGooglePlayServicesAvailable(mContext) != ConnectionResult.SUCCESS) {
+			throw new UnsupportedDevice();
+		}
+		return GoogleAuthUtil.getTokenWithNotification(mContext, accountName,
+				Downloader.SCOPE, null, callback);
+	}
+
+	@Override
+	public void invalidateToken(String token) {
+		GoogleAuthUtil.invalidateToken(mContext, token);
+	}
+
+}
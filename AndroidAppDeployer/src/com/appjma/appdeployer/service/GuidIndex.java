@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.service;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Snapshot of guid to row id mapping of one table, loaded once per sync.
+ *
+ * Rows are kept in parallel arrays sorted by guid, so lookup is a binary
+ * search and every row costs only a few primitives. Index also remembers
+ * which rows were seen during sync.
+ */
+class GuidIndex {
+
+	private final String[] mGuids;
+	private final long[] mRowIds;
+	private final long[] mUpdatedAts;
+	private final BitSet mSynced;
+	private final BitSet mSeen;
+
+	/**
+	 * Loads rows that have guid
+	 *
+	 * @param syncedField
+	 *            field that is 0 for rows with local changes
+	 */
+	public static GuidIndex load(ContentResolver cr, Uri uri, String idField,
+			String guidField, String updatedAtField, String syncedField) {
+		Cursor cursor = cr.query(uri, new String[] { idField, guidField,
+				updatedAtField, syncedField }, guidField + " IS NOT NULL",
+				null, null);
+		try {
+			int count = cursor.getCount();
+			final String[] guids = new String[count];
+			long[] rowIds = new long[count];
+			long[] updatedAts = new long[count];
+			boolean[] synced = new boolean[count];
+			for (int i = 0; cursor.moveToNext(); i++) {
+				rowIds[i] = cursor.getLong(0);
+				guids[i] = cursor.getString(1);
+				updatedAts[i] = cursor.getLong(2);
+				synced[i] = cursor.getInt(3) != 0;
+			}
+			Integer[] order = new Integer[count];
+			for (int i = 0; i < count; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+
+				@Override
+				public int compare(Integer lhs, Integer rhs) {
+					return guids[lhs].compareTo(guids[rhs]);
+				}
+			});
+			return new GuidIndex(guids, rowIds, updatedAts, synced, order);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private GuidIndex(String[] guids, long[] rowIds, long[] updatedAts,
+			boolean[] synced, Integer[] order) {
+		int count = order.length;
+		mGuids = new String[count];
+		mRowIds = new long[count];
+		mUpdatedAts = new long[count];
+		mSynced = new BitSet(count);
+		mSeen = new BitSet(count);
+		for (int i = 0; i < count; i++) {
+			int from = order[i];
+			mGuids[i] = guids[from];
+			mRowIds[i] = rowIds[from];
+			mUpdatedAts[i] = updatedAts[from];
+			mSynced.set(i, synced[from]);
+		}
+	}
+
+	/**
+	 * @return position of row or -1 if there is no row with given guid
+	 */
+	public int find(String guid) {
+		int pos = Arrays.binarySearch(mGuids, guid);
+		return pos >= 0 ? pos : -1;
+	}
+
+	public int size() {
+		return mGuids.length;
+	}
+
+	public long getRowId(int pos) {
+		return mRowIds[pos];
+	}
+
+	public long getUpdatedAt(int pos) {
+		return mUpdatedAts[pos];
+	}
+
+	/**
+	 * @return false if row has local changes that are not yet on server
+	 */
+	public boolean isSynced(int pos) {
+		return mSynced.get(pos);
+	}
+
+	public void markSeen(int pos) {
+		mSeen.set(pos);
+	}
+
+	public boolean isSeen(int pos) {
+		return mSeen.get(pos);
+	}
+
+}
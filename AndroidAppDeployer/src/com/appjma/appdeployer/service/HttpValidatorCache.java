@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.service;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.google.common.collect.Sets;
+
+/**
+ * Remembers ETag/Last-Modified validators of API responses by request url, so
+ * following requests can be conditional and "304 Not Modified" responses can
+ * be skipped without parsing and writing to provider.
+ *
+ * Validators should be stored only after response is applied, otherwise
+ * unchanged data would never be written.
+ */
+public class HttpValidatorCache {
+
+	private static final String PREFERENCES_NAME = "http_validators";
+	private static final int MAX_ENTRIES = 500;
+	private static final int EVICT_TO_ENTRIES = MAX_ENTRIES * 3 / 4;
+
+	private static final String FIELD_ETAG = "etag";
+	private static final String FIELD_LAST_MODIFIED = "last_modified";
+	private static final String FIELD_LENGTH = "length";
+	private static final String FIELD_EXTRA = "extra";
+	private static final String FIELD_STORED = "stored";
+
+	public static class Entry {
+		private final String mUrl;
+		private final String mETag;
+		private final String mLastModified;
+		private final long mLength;
+		private String mExtra;
+
+		private Entry(String url, String eTag, String lastModified,
+				long length, String extra) {
+			mUrl = url;
+			mETag = eTag;
+			mLastModified = lastModified;
+			mLength = length;
+			mExtra = extra;
+		}
+
+		/**
+		 * @return additional value stored with validators, e.g. next page
+		 *         token of response
+		 */
+		public String getExtra() {
+			return mExtra;
+		}
+
+		public Entry setExtra(String extra) {
+			mExtra = extra;
+			return this;
+		}
+	}
+
+	private static HttpValidatorCache sInstance;
+
+	public static synchronized HttpValidatorCache getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new HttpValidatorCache(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	private final SharedPreferences mPreferences;
+	private final AtomicLong mHits = new AtomicLong();
+	private final AtomicLong mMisses = new AtomicLong();
+	private final AtomicLong mBytesSaved = new AtomicLong();
+	private int mSize = -1;
+
+	private HttpValidatorCache(Context context) {
+		mPreferences = context.getSharedPreferences(PREFERENCES_NAME, 0);
+	}
+
+	/**
+	 * Adds conditional headers to request if validators for its url are known
+	 *
+	 * @return cached entry or null
+	 */
+	public Entry setupRequest(HttpRequestBase request) {
+		String url = request.getURI().toString();
+		String value = mPreferences.getString(url, null);
+		if (value == null) {
+			return null;
+		}
+		Entry entry;
+		try {
+			JSONObject json = new JSONObject(value);
+			entry = new Entry(url, JSONHelper.getStrinOrNull(json,
+					FIELD_ETAG), JSONHelper.getStrinOrNull(json,
+					FIELD_LAST_MODIFIED), json.optLong(FIELD_LENGTH, 0),
+					JSONHelper.getStrinOrNull(json, FIELD_EXTRA));
+		} catch (JSONException e) {
+			return null;
+		}
+		if (entry.mETag != null) {
+			request.setHeader("If-None-Match", entry.mETag);
+		}
+		if (entry.mLastModified != null) {
+			request.setHeader("If-Modified-Since", entry.mLastModified);
+		}
+		return entry;
+	}
+
+	/**
+	 * Counts hit or miss
+	 *
+	 * @param cached
+	 *            entry returned by {@link #setupRequest(HttpRequestBase)}
+	 * @return true if response could be skipped
+	 */
+	public boolean isNotModified(HttpResponse response, Entry cached) {
+		if (cached != null
+				&& response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+			mHits.incrementAndGet();
+			mBytesSaved.addAndGet(cached.mLength);
+			return true;
+		}
+		mMisses.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * @return validators of response or null if server did not send them
+	 */
+	public Entry getValidators(HttpRequestBase request, HttpResponse response) {
+		Header eTag = response.getFirstHeader("ETag");
+		Header lastModified = response.getFirstHeader("Last-Modified");
+		if (eTag == null && lastModified == null) {
+			return null;
+		}
+		HttpEntity entity = response.getEntity();
+		long length = entity == null ? 0 : Math.max(0,
+				entity.getContentLength());
+		return new Entry(request.getURI().toString(), eTag == null ? null
+				: eTag.getValue(), lastModified == null ? null
+				: lastModified.getValue(), length, null);
+	}
+
+	/**
+	 * Stores validators of applied responses with single preferences write.
+	 * If cache grows over limit oldest stored entries are removed, urls with
+	 * old sync cursors are never requested again.
+	 */
+	public synchronized void putAll(Collection<Entry> entries) {
+		if (entries.isEmpty()) {
+			return;
+		}
+		if (mSize < 0) {
+			mSize = mPreferences.getAll().size();
+		}
+		long now = System.currentTimeMillis();
+		Set<String> urls = Sets.newHashSet();
+		SharedPreferences.Editor editor = mPreferences.edit();
+		for (Entry entry : entries) {
+			if (entry == null) {
+				continue;
+			}
+			JSONObject json = new JSONObject();
+			try {
+				json.put(FIELD_ETAG, entry.mETag);
+				json.put(FIELD_LAST_MODIFIED, entry.mLastModified);
+				json.put(FIELD_LENGTH, entry.mLength);
+				json.put(FIELD_EXTRA, entry.mExtra);
+				json.put(FIELD_STORED, now);
+			} catch (JSONException e) {
+				throw new RuntimeException(e);
+			}
+			if (urls.add(entry.mUrl) && !mPreferences.contains(entry.mUrl)) {
+				mSize += 1;
+			}
+			editor.putString(entry.mUrl, json.toString());
+		}
+		if (mSize > MAX_ENTRIES) {
+			evictOldest(editor, urls, mSize - EVICT_TO_ENTRIES);
+		}
+		editor.apply();
+	}
+
+	private void evictOldest(SharedPreferences.Editor editor,
+			Set<String> keep, int count) {
+		PriorityQueue<StoredUrl> oldest = new PriorityQueue<StoredUrl>();
+		for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+			if (keep.contains(entry.getKey())) {
+				continue;
+			}
+			long stored = 0;
+			try {
+				stored = new JSONObject(String.valueOf(entry.getValue()))
+						.optLong(FIELD_STORED, 0);
+			} catch (JSONException e) {
+				// broken entries are removed first
+			}
+			oldest.add(new StoredUrl(entry.getKey(), stored));
+		}
+		for (int i = 0; i < count && !oldest.isEmpty(); i++) {
+			editor.remove(oldest.poll().mUrl);
+			mSize -= 1;
+		}
+	}
+
+	private static class StoredUrl implements Comparable<StoredUrl> {
+		private final String mUrl;
+		private final long mStored;
+
+		private StoredUrl(String url, long stored) {
+			mUrl = url;
+			mStored = stored;
+		}
+
+		@Override
+		public int compareTo(StoredUrl another) {
+			return mStored < another.mStored ? -1
+					: (mStored == another.mStored ? 0 : 1);
+		}
+	}
+
+	public synchronized void clear() {
+		mPreferences.edit().clear().commit();
+		mSize = 0;
+	}
+
+	public long getHits() {
+		return mHits.get();
+	}
+
+	public long getMisses() {
+		return mMisses.get();
+	}
+
+	public long getBytesSaved() {
+		return mBytesSaved.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("hits: %d, misses: %d, bytes saved: %d",
+				getHits(), getMisses(), getBytesSaved());
+	}
+
+}
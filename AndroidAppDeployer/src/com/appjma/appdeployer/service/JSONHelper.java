@@ -15,10 +15,17 @@
  */
 package com.appjma.appdeployer.service;
 
+import java.io.IOException;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
 public class JSONHelper {
 	public static final JSONArray EMPTY_ARRAY = new JSONArray();
 
@@ -72,4 +79,32 @@ public class JSONHelper {
 		return getStringOrDefault(json, key, null);
 	}
 
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	public static String nextStringOrNull(JsonReader reader)
+			throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return null;
+		}
+		return reader.nextString();
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	public static boolean nextBooleanOrFalse(JsonReader reader)
+			throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return false;
+		}
+		return reader.nextBoolean();
+	}
+
+	public static String checkStringNotNull(String value, String key)
+			throws JSONException {
+		if (value == null) {
+			throw new JSONException("Key \"" + key + "\" is null");
+		}
+		return value;
+	}
+
 }
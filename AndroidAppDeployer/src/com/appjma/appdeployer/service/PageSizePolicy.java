@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Chooses page size of paginated requests from observed latency and payload
+ * size.
+ *
+ * Page size is doubled while pages are fast and small and halved when they
+ * get slower than target latency or bigger than maximal payload.
+ */
+public class PageSizePolicy {
+
+	private final int mMinPageSize;
+	private final int mMaxPageSize;
+	private final long mTargetLatencyMs;
+	private final long mMaxPageBytes;
+	private int mPageSize;
+
+	public PageSizePolicy(int minPageSize, int initialPageSize,
+			int maxPageSize, long targetLatencyMs, long maxPageBytes) {
+		checkArgument(minPageSize > 0);
+		checkArgument(minPageSize <= initialPageSize
+				&& initialPageSize <= maxPageSize);
+		mMinPageSize = minPageSize;
+		mMaxPageSize = maxPageSize;
+		mTargetLatencyMs = targetLatencyMs;
+		mMaxPageBytes = maxPageBytes;
+		mPageSize = initialPageSize;
+	}
+
+	public synchronized int getPageSize() {
+		return mPageSize;
+	}
+
+	/**
+	 * @param pageSize
+	 *            page size that was requested
+	 * @param latencyMs
+	 *            time of request including reading response body
+	 * @param bytes
+	 *            size of response body or negative if unknown
+	 */
+	public synchronized void onPageLoaded(int pageSize, long latencyMs,
+			long bytes) {
+		if (latencyMs > mTargetLatencyMs || bytes > mMaxPageBytes) {
+			mPageSize = Math.max(mMinPageSize, pageSize / 2);
+		} else if (latencyMs < mTargetLatencyMs / 2
+				&& bytes < mMaxPageBytes / 2) {
+			mPageSize = Math.min(mMaxPageSize, pageSize * 2);
+		}
+	}
+
+}
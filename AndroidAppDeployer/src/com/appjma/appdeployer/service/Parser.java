@@ -15,23 +15,33 @@
  */
 package com.appjma.appdeployer.service;
 
+import java.io.IOException;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import java.util.TimeZone;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
 public class Parser {
 
 	private final ParserResult mParserResult;
-	private SimpleDateFormat mDateFormat;
+	private final TimestampDecoder mTimestampDecoder;
+	// sync cursors are sent back to server, so they do not depend on zone
+	// of device
+	private final TimestampDecoder mCursorDecoder;
+	private long mNewestUpdatedAt;
 
 	public Parser(ParserResult parserResult) {
 		mParserResult = parserResult;
-		mDateFormat = new SimpleDateFormat("MMM F, y h:m:s a", Locale.UK);
+		mTimestampDecoder = new TimestampDecoder(TimeZone.getDefault());
+		mCursorDecoder = new TimestampDecoder(TimeZone.getTimeZone("UTC"));
 	}
 
 	public void parseApps(JSONObject json) throws JSONException {
@@ -44,12 +54,52 @@ public class Parser {
 		mParserResult.setAppsNextToken(nextToken);
 	}
 
+	/**
+	 * @return newest updated_at of parsed items since last
+	 *         {@link #resetNewestUpdatedAt()}, decoded in UTC, or 0 if none
+	 *         was parsed
+	 */
+	public long getNewestUpdatedAt() {
+		return mNewestUpdatedAt;
+	}
+
+	public void resetNewestUpdatedAt() {
+		mNewestUpdatedAt = 0;
+	}
+
+	/**
+	 * @return updated_at decoded in zone of device
+	 */
+	private long noteUpdatedAt(String updatedAt) throws JSONException {
+		long cursor = parseTimeOrThrow(mCursorDecoder, updatedAt,
+				"updated_at");
+		if (cursor > mNewestUpdatedAt) {
+			mNewestUpdatedAt = cursor;
+		}
+		return parseTimeOrThrow(updatedAt, "updated_at");
+	}
+
+	private boolean parseTombstone(JSONObject json) throws JSONException {
+		if (!json.optBoolean("deleted", false)) {
+			return false;
+		}
+		if (!json.isNull("updated_at")) {
+			noteUpdatedAt(JSONHelper.getStrinOrNull(json, "updated_at"));
+		}
+		return true;
+	}
+
 	public void parseApp(String id, JSONObject json) throws JSONException {
 		String guid = JSONHelper.getStrinOrThrow(json, "guid");
+		if (parseTombstone(json)) {
+			mParserResult.deleteAppByGuid(guid);
+			return;
+		}
 		String name = JSONHelper.getStrinOrThrow(json, "name");
 		String token = JSONHelper.getStrinOrThrow(json, "token");
-		Date createdAt = getTimeOrThrow(json, "created_at");
-		Date updatedAt = getTimeOrThrow(json, "updated_at");
+		long createdAt = getTimeOrThrow(json, "created_at");
+		long updatedAt = noteUpdatedAt(JSONHelper.getStrinOrNull(json,
+				"updated_at"));
 		mParserResult.addApp(id, guid, name, token, createdAt, updatedAt);
 	}
 
@@ -62,11 +112,177 @@ public class Parser {
 		}
 	}
 
-	private Date getTimeOrThrow(JSONObject json, String key)
+	/**
+	 * Streaming version of {@link #parseApps(JSONObject)}. Every app is passed
+	 * to {@link ParserResult} as soon as it is read, so memory usage does not
+	 * depend on page size.
+	 */
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	public void parseApps(JsonReader reader) throws IOException,
+			JSONException {
+		try {
+			String nextToken = null;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if ("items".equals(name) && reader.peek() != JsonToken.NULL) {
+					reader.beginArray();
+					while (reader.hasNext()) {
+						parseApp(null, reader);
+					}
+					reader.endArray();
+				} else if ("next_token".equals(name)) {
+					nextToken = JSONHelper.nextStringOrNull(reader);
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			mParserResult.setAppsNextToken(nextToken);
+		} catch (IllegalStateException e) {
+			throw new JSONException(e.getMessage());
+		} catch (MalformedJsonException e) {
+			throw new JSONException(e.getMessage());
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private void parseApp(String id, JsonReader reader) throws IOException,
+			JSONException {
+		String guid = null;
+		String name = null;
+		String token = null;
+		String createdAt = null;
+		String updatedAt = null;
+		boolean deleted = false;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String key = reader.nextName();
+			if ("guid".equals(key)) {
+				guid = JSONHelper.nextStringOrNull(reader);
+			} else if ("name".equals(key)) {
+				name = JSONHelper.nextStringOrNull(reader);
+			} else if ("token".equals(key)) {
+				token = JSONHelper.nextStringOrNull(reader);
+			} else if ("deleted".equals(key)) {
+				deleted = JSONHelper.nextBooleanOrFalse(reader);
+			} else if ("created_at".equals(key)) {
+				createdAt = JSONHelper.nextStringOrNull(reader);
+			} else if ("updated_at".equals(key)) {
+				updatedAt = JSONHelper.nextStringOrNull(reader);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		JSONHelper.checkStringNotNull(guid, "guid");
+		if (deleted) {
+			if (updatedAt != null) {
+				noteUpdatedAt(updatedAt);
+			}
+			mParserResult.deleteAppByGuid(guid);
+			return;
+		}
+		mParserResult.addApp(id, guid,
+				JSONHelper.checkStringNotNull(name, "name"),
+				JSONHelper.checkStringNotNull(token, "token"),
+				parseTimeOrThrow(createdAt, "created_at"),
+				noteUpdatedAt(updatedAt));
+	}
+
+	/**
+	 * Streaming version of {@link #parseAppVersions(String, JSONObject)}.
+	 */
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	public void parseAppVersions(String appId, JsonReader reader)
+			throws IOException, JSONException {
+		try {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if ("items".equals(name) && reader.peek() != JsonToken.NULL) {
+					reader.beginArray();
+					while (reader.hasNext()) {
+						parseAppVersion(appId, reader);
+					}
+					reader.endArray();
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+		} catch (IllegalStateException e) {
+			throw new JSONException(e.getMessage());
+		} catch (MalformedJsonException e) {
+			throw new JSONException(e.getMessage());
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private void parseAppVersion(String appId, JsonReader reader)
+			throws IOException, JSONException {
+		String guid = null;
+		String version = null;
+		String downloadUrl = null;
+		String sha256 = null;
+		String createdAt = null;
+		String updatedAt = null;
+		boolean deleted = false;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String key = reader.nextName();
+			if ("guid".equals(key)) {
+				guid = JSONHelper.nextStringOrNull(reader);
+			} else if ("version".equals(key)) {
+				version = JSONHelper.nextStringOrNull(reader);
+			} else if ("app_download_url".equals(key)) {
+				downloadUrl = JSONHelper.nextStringOrNull(reader);
+			} else if ("app_sha256".equals(key)) {
+				sha256 = JSONHelper.nextStringOrNull(reader);
+			} else if ("deleted".equals(key)) {
+				deleted = JSONHelper.nextBooleanOrFalse(reader);
+			} else if ("created_at".equals(key)) {
+				createdAt = JSONHelper.nextStringOrNull(reader);
+			} else if ("updated_at".equals(key)) {
+				updatedAt = JSONHelper.nextStringOrNull(reader);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		JSONHelper.checkStringNotNull(guid, "guid");
+		if (deleted) {
+			if (updatedAt != null) {
+				noteUpdatedAt(updatedAt);
+			}
+			mParserResult.deleteAppVersionByGuid(guid);
+			return;
+		}
+		mParserResult.addAppVersion(appId, guid,
+				JSONHelper.checkStringNotNull(version, "version"),
+				JSONHelper.checkStringNotNull(downloadUrl, "app_download_url"),
+				sha256, parseTimeOrThrow(createdAt, "created_at"),
+				noteUpdatedAt(updatedAt));
+	}
+
+	private long getTimeOrThrow(JSONObject json, String key)
 			throws JSONException {
 		String time = JSONHelper.getStrinOrNull(json, key);
+		return parseTimeOrThrow(time, key);
+	}
+
+	private long parseTimeOrThrow(String time, String key)
+			throws JSONException {
+		return parseTimeOrThrow(mTimestampDecoder, time, key);
+	}
+
+	private static long parseTimeOrThrow(TimestampDecoder decoder,
+			String time, String key) throws JSONException {
+		if (time == null) {
+			throw new JSONException("Key \"" + key + "\" is null");
+		}
 		try {
-			return mDateFormat.parse(time);
+			return decoder.decode(time);
 		} catch (ParseException e) {
 			throw new JSONException("Could not parse time field \"" + key
 					+ "\" because: " + e.getMessage());
@@ -76,13 +292,19 @@ public class Parser {
 	private void parseAppVersion(String appId, JSONObject json)
 			throws JSONException {
 		String guid = JSONHelper.getStrinOrThrow(json, "guid");
+		if (parseTombstone(json)) {
+			mParserResult.deleteAppVersionByGuid(guid);
+			return;
+		}
 		String version = JSONHelper.getStrinOrThrow(json, "version");
 		String downloadUrl = JSONHelper.getStrinOrThrow(json,
 				"app_download_url");
-		Date createdAt = getTimeOrThrow(json, "created_at");
-		Date updatedAt = getTimeOrThrow(json, "updated_at");
+		String sha256 = JSONHelper.getStrinOrNull(json, "app_sha256");
+		long createdAt = getTimeOrThrow(json, "created_at");
+		long updatedAt = noteUpdatedAt(JSONHelper.getStrinOrNull(json,
+				"updated_at"));
 		mParserResult.addAppVersion(appId, guid, version, downloadUrl,
-				createdAt, updatedAt);
+				sha256, createdAt, updatedAt);
 
 	}
 
@@ -15,8 +15,6 @@
  */
 package com.appjma.appdeployer.service;
 
-import java.util.Date;
-
 public interface ParserResult {
 
 	void apply();
@@ -27,14 +25,20 @@ public interface ParserResult {
 
 	void clearOldApps();
 
-	void addApp(String id, String guid, String name, String token, Date createdAt,
-			Date updatedAt);
+	void addApp(String id, String guid, String name, String token,
+			long createdAt, long updatedAt);
 
 	void addAppVersion(String appId, String guid, String version,
-			String downloadUrl, Date createdAt, Date updatedAt);
+			String downloadUrl, String sha256, long createdAt, long updatedAt);
 
 	void clearOldAppVersions(String appId);
 
 	void deleteApp(String id);
 
+	void deleteAppByGuid(String guid);
+
+	void deleteAppVersionByGuid(String guid);
+
+	void setAppVersionsUpdatedSince(String appGuid, long updatedSince);
+
 }
@@ -16,43 +16,221 @@
 package com.appjma.appdeployer.service;
 
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.OperationApplicationException;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
 
 import com.appjma.appdeployer.AppPreferences;
 import com.appjma.appdeployer.AppPreferences.AppEdit;
+import com.appjma.appdeployer.BuildConfig;
 import com.appjma.appdeployer.content.AppContract;
+import com.appjma.appdeployer.content.ChangeNotificationScope;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import static com.google.common.base.Preconditions.checkState;
 
 public class ProviderParserResult implements ParserResult {
 
+	/**
+	 * Maximal number of operations kept in memory during write session
+	 */
+	private static final int SESSION_SPILL_OPS = 500;
+	private static final String TAG = "ProviderParserResult";
+
 	private ContentResolver mCr;
 	private AppPreferences mAppPreferences;
 	private ArrayList<ContentProviderOperation> mOps;
 	private AppEdit mEditor;
 	private long mSyncToken;
+	private String mAppsNextToken;
+	private Map<String, Long> mAppVersionsUpdatedSince;
+	private HttpValidatorCache mValidatorCache;
+	private List<HttpValidatorCache.Entry> mValidators;
+	private boolean mInSession;
+	private boolean mClearOldApps;
+	private long mAppsUpdatedSince;
+	private GuidIndex mAppsIndex;
+	private Map<String, GuidIndex> mAppVersionsIndexes;
+	private long mSessionStartMs;
+	private int mRowsInserted;
+	private int mRowsUpdated;
+	private int mRowsDeleted;
+	private int mRowsSkipped;
+	private int mChangedRows;
+	private Set<Long> mChangedAppIds;
+	private boolean mAppsStructureChanged;
+	private boolean mAppVersionsChanged;
 
 	public ProviderParserResult(Context context) {
 		mCr = context.getContentResolver();
 		mAppPreferences = new AppPreferences(context);
+		mValidatorCache = HttpValidatorCache.getInstance(context);
+		clear();
+	}
+
+	/**
+	 * Starts write session spanning many pages of one sync. Until
+	 * {@link #endSession()} {@link #apply()} only writes rows when more than
+	 * {@link #SESSION_SPILL_OPS} operations are waiting; removing of old rows,
+	 * sync cursors and validators are written once at the end.
+	 *
+	 * Apps added without id are matched with stored rows by guid, so only new
+	 * and changed apps are written.
+	 *
+	 * Session is dropped by {@link #clear()}.
+	 */
+	public void beginSession() {
+		checkState(!mInSession, "Session already started");
 		clear();
+		mInSession = true;
+		mSessionStartMs = SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * Writes all remaining operations in one batch and then stores sync
+	 * cursors
+	 */
+	public void endSession() {
+		checkState(mInSession, "Session not started");
+		if (mClearOldApps) {
+			addClearOldApps();
+		}
+		mInSession = false;
+		apply();
+		if (BuildConfig.DEBUG) {
+			Log.d(TAG, String.format(
+					"Session written in %d ms, inserted: %d, updated: %d, "
+							+ "deleted: %d, skipped: %d",
+					SystemClock.elapsedRealtime() - mSessionStartMs,
+					mRowsInserted, mRowsUpdated, mRowsDeleted, mRowsSkipped));
+		}
+	}
+
+	private GuidIndex getAppsIndex() {
+		if (mAppsIndex == null) {
+			// loaded before any operation of session is applied, so it
+			// contains only rows from before sync
+			mAppsIndex = GuidIndex.load(mCr, AppContract.Apps.CONTENT_URI,
+					AppContract.Apps.APP_ID, AppContract.Apps.GUID,
+					AppContract.Apps.UPDATED_AT, AppContract.Apps.SYNCED);
+		}
+		return mAppsIndex;
+	}
+
+	private GuidIndex getAppVersionsIndex(String appId) {
+		GuidIndex index = mAppVersionsIndexes.get(appId);
+		if (index == null) {
+			// loaded before operations of app are applied, so it contains
+			// only rows from before sync
+			Uri uri = AppContract.Apps.CONTENT_URI.buildUpon()
+					.appendPath(appId)
+					.appendPath(AppContract.AppVersions.CONTENT_PATH).build();
+			index = GuidIndex.load(mCr, uri,
+					AppContract.AppVersions.APP_VERSION_ID,
+					AppContract.AppVersions.GUID,
+					AppContract.AppVersions.UPDATED_AT,
+					AppContract.AppVersions.SYNCED);
+			mAppVersionsIndexes.put(appId, index);
+		}
+		return index;
 	}
 
 	@Override
 	public void apply() {
+		if (mInSession) {
+			if (mOps.size() >= SESSION_SPILL_OPS) {
+				// spilled rows are stamped with session sync token so they
+				// are still valid if session fails later
+				applyOps();
+				mOps = new ArrayList<ContentProviderOperation>();
+			}
+			return;
+		}
+		applyOps();
+		for (Map.Entry<String, Long> entry : mAppVersionsUpdatedSince
+				.entrySet()) {
+			mEditor.setAppVersionsUpdatedSince(entry.getKey(),
+					entry.getValue());
+		}
+		if (mAppsUpdatedSince != 0) {
+			mEditor.setAppsUpdatedSince(mAppsUpdatedSince);
+		}
+		// cursors are written only after rows so they never point past
+		// stored data
+		mEditor.apply();
+		mValidatorCache.putAll(mValidators);
+	}
+
+	/**
+	 * @return number of rows inserted, updated or deleted in provider since
+	 *         result was created, it is not reset by {@link #clear()}
+	 */
+	public int getChangedRows() {
+		return mChangedRows;
+	}
+
+	private void applyOps() {
+		if (mOps.isEmpty()) {
+			return;
+		}
+		ContentProviderResult[] results;
 		try {
-			mCr.applyBatch(AppContract.AUTHORITY, mOps);
+			results = mCr.applyBatch(AppContract.AUTHORITY, mOps);
 		} catch (RemoteException e) {
 			throw new RuntimeException(e);
 		} catch (OperationApplicationException e) {
 			throw new RuntimeException(e);
 		}
-		mEditor.commit();
+		for (ContentProviderResult result : results) {
+			// inserts return uri, updates and deletes return row count
+			if (result.uri != null) {
+				mChangedRows += 1;
+			} else if (result.count != null) {
+				mChangedRows += result.count;
+			}
+		}
+		announceChanges();
+	}
+
+	/**
+	 * Lets loaders re-read only changed apps instead of whole lists
+	 */
+	private void announceChanges() {
+		if (mAppsStructureChanged) {
+			ChangeNotificationScope
+					.announceStructureChanged(AppContract.Apps.CONTENT_URI);
+		} else if (!mChangedAppIds.isEmpty()) {
+			ChangeNotificationScope.announceRowsChanged(
+					AppContract.Apps.CONTENT_URI, mChangedAppIds);
+		}
+		if (mAppVersionsChanged) {
+			ChangeNotificationScope
+					.announceStructureChanged(AppContract.AppVersions.CONTENT_URI);
+		}
+		clearChanges();
+	}
+
+	private void clearChanges() {
+		mChangedAppIds = Sets.newHashSet();
+		mAppsStructureChanged = false;
+		mAppVersionsChanged = false;
+	}
+
+	private void appChanged(String appId) {
+		mChangedAppIds.add(Long.valueOf(appId));
 	}
 
 	@Override
@@ -60,15 +238,94 @@ public class ProviderParserResult implements ParserResult {
 		mOps = new ArrayList<ContentProviderOperation>();
 		mEditor = mAppPreferences.edit();
 		mSyncToken = System.currentTimeMillis();
+		mAppsNextToken = null;
+		mAppsUpdatedSince = 0;
+		mInSession = false;
+		mClearOldApps = false;
+		mAppsIndex = null;
+		mAppVersionsIndexes = Maps.newHashMap();
+		mRowsInserted = 0;
+		mRowsUpdated = 0;
+		mRowsDeleted = 0;
+		mRowsSkipped = 0;
+		clearChanges();
+		mAppVersionsUpdatedSince = Maps.newHashMap();
+		mValidators = Lists.newArrayList();
+	}
+
+	/**
+	 * Appends operations gathered by other result, e.g. one filled by a worker
+	 * thread, so they are applied together with this result
+	 */
+	public void addAll(ProviderParserResult other) {
+		mOps.addAll(other.mOps);
+		mAppVersionsUpdatedSince.putAll(other.mAppVersionsUpdatedSince);
+		mValidators.addAll(other.mValidators);
+		mChangedAppIds.addAll(other.mChangedAppIds);
+		mAppsStructureChanged |= other.mAppsStructureChanged;
+		mAppVersionsChanged |= other.mAppVersionsChanged;
+	}
+
+	/**
+	 * Validators of parsed response, they are stored only when result is
+	 * applied
+	 */
+	public void addValidators(HttpValidatorCache.Entry validators) {
+		if (validators != null) {
+			mValidators.add(validators);
+		}
 	}
 
 	@Override
 	public void setAppsNextToken(String nextToken) {
-		mEditor.setAppsNextToken(nextToken);
+		// only needed for pagination of current sync, so it is not
+		// persisted
+		mAppsNextToken = nextToken;
+	}
+
+	/**
+	 * Sets apps sync cursor that is stored together with rows
+	 */
+	public void setAppsUpdatedSince(long updatedSince) {
+		mAppsUpdatedSince = updatedSince;
+	}
+
+	/**
+	 * @return next page token parsed since last {@link #clear()}, available
+	 *         before {@link #apply()}
+	 */
+	public String getAppsNextToken() {
+		return mAppsNextToken;
+	}
+
+	@Override
+	public void setAppVersionsUpdatedSince(String appGuid, long updatedSince) {
+		// kept aside from editor so it survives addAll()
+		mAppVersionsUpdatedSince.put(appGuid, updatedSince);
 	}
 
 	@Override
 	public void clearOldApps() {
+		if (mInSession) {
+			// apps from following pages are not yet stamped
+			mClearOldApps = true;
+		} else {
+			addClearOldApps();
+		}
+	}
+
+	private void addClearOldApps() {
+		if (mInSession) {
+			// apps skipped as unchanged keep their old sync token, so apps
+			// missing on server are found by index
+			GuidIndex index = getAppsIndex();
+			for (int pos = 0; pos < index.size(); pos++) {
+				if (!index.isSeen(pos) && index.isSynced(pos)) {
+					deleteApp(String.valueOf(index.getRowId(pos)));
+				}
+			}
+			return;
+		}
 		String selection = AppContract.Apps.GUID + " IS NOT NULL AND "
 				+ AppContract.Apps.SYNC_TOKEN + " != ? AND "
 				+ AppContract.Apps.SYNCED + " != 0";
@@ -76,19 +333,25 @@ public class ProviderParserResult implements ParserResult {
 		mOps.add(ContentProviderOperation
 				.newDelete(AppContract.Apps.CONTENT_URI)
 				.withSelection(selection, selectionArgs).build());
+		mAppsStructureChanged = true;
 	}
 
 	@Override
 	public void clearOldAppVersions(String appId) {
-		String selection = AppContract.AppVersions.GUID + " IS NOT NULL AND "
-				+ AppContract.AppVersions.SYNC_TOKEN + " != ? AND "
-				+ AppContract.AppVersions.SYNCED + " != 0 AND "
-				+ AppContract.AppVersions.APP_ID + " = ?";
-		String[] selectionArgs = new String[] { String.valueOf(mSyncToken),
-				appId };
-		mOps.add(ContentProviderOperation
-				.newDelete(AppContract.AppVersions.CONTENT_URI)
-				.withSelection(selection, selectionArgs).build());
+		// versions skipped as unchanged keep their old sync token, so
+		// versions missing on server are found by index
+		GuidIndex index = getAppVersionsIndex(appId);
+		for (int pos = 0; pos < index.size(); pos++) {
+			if (!index.isSeen(pos) && index.isSynced(pos)) {
+				mRowsDeleted++;
+				mOps.add(ContentProviderOperation.newDelete(
+						Uri.withAppendedPath(
+								AppContract.AppVersions.CONTENT_URI,
+								String.valueOf(index.getRowId(pos)))).build());
+				mAppVersionsChanged = true;
+				appChanged(appId);
+			}
+		}
 	}
 	
 	private ContentProviderOperation.Builder insertOrUpdate(Uri uri, String id) {
@@ -100,46 +363,122 @@ public class ProviderParserResult implements ParserResult {
 		}
 	}
 
-	@SuppressWarnings("deprecation")
 	@Override
 	public void addApp(String id, String guid, String name, String token,
-			Date createdAt, Date updatedAt) {
+			long createdAt, long updatedAt) {
+		if (id == null && mInSession) {
+			GuidIndex index = getAppsIndex();
+			int pos = index.find(guid);
+			if (pos >= 0) {
+				index.markSeen(pos);
+				if (index.isSynced(pos)
+						&& index.getUpdatedAt(pos) == updatedAt) {
+					mRowsSkipped++;
+					return;
+				}
+				id = String.valueOf(index.getRowId(pos));
+			}
+		}
+		if (id == null) {
+			mRowsInserted++;
+			mAppsStructureChanged = true;
+		} else {
+			mRowsUpdated++;
+			appChanged(id);
+		}
 		mOps.add(insertOrUpdate(AppContract.Apps.CONTENT_URI, id)
 				.withValue(AppContract.Apps.GUID, guid)
 				.withValue(AppContract.Apps.NAME, name)
 				.withValue(AppContract.Apps.TOKEN, token)
 				.withValue(AppContract.Apps.SYNC_TOKEN, mSyncToken)
-				.withValue(AppContract.Apps.CREATED_AT, createdAt.getDate())
-				.withValue(AppContract.Apps.UPDATED_AT, updatedAt.getDate())
+				.withValue(AppContract.Apps.CREATED_AT, createdAt)
+				.withValue(AppContract.Apps.UPDATED_AT, updatedAt)
 				.withValue(AppContract.Apps.DELETED, false)
 				.withValue(AppContract.Apps.SYNCED, true).build());
 	}
 
-	@SuppressWarnings("deprecation")
 	@Override
 	public void addAppVersion(String appId, String guid, String version,
-			String downloadUrl, Date createdAt, Date updatedAt) {
-		mOps.add(ContentProviderOperation
-				.newInsert(AppContract.AppVersions.CONTENT_URI)
+			String downloadUrl, String sha256, long createdAt, long updatedAt) {
+		GuidIndex index = getAppVersionsIndex(appId);
+		int pos = index.find(guid);
+		String id = null;
+		if (pos >= 0) {
+			index.markSeen(pos);
+			if (index.isSynced(pos) && index.getUpdatedAt(pos) == updatedAt) {
+				mRowsSkipped++;
+				return;
+			}
+			id = String.valueOf(index.getRowId(pos));
+		}
+		if (id == null) {
+			mRowsInserted++;
+		} else {
+			mRowsUpdated++;
+		}
+		mOps.add(insertOrUpdate(AppContract.AppVersions.CONTENT_URI, id)
 				.withValue(AppContract.AppVersions.APP_ID, appId)
 				.withValue(AppContract.AppVersions.GUID, guid)
 				.withValue(AppContract.AppVersions.VERSION, version)
 				.withValue(AppContract.AppVersions.DOWNLOAD_URL, downloadUrl)
+				.withValue(AppContract.AppVersions.SHA256, sha256)
 				.withValue(AppContract.AppVersions.SYNC_TOKEN, mSyncToken)
-				.withValue(AppContract.AppVersions.CREATED_AT,
-						createdAt.getDate())
-				.withValue(AppContract.AppVersions.UPDATED_AT,
-						updatedAt.getDate())
+				.withValue(AppContract.AppVersions.CREATED_AT, createdAt)
+				.withValue(AppContract.AppVersions.UPDATED_AT, updatedAt)
 				.withValue(AppContract.AppVersions.SYNCED, true).build());
+		mAppVersionsChanged = true;
+		// newest version of app is updated by trigger
+		appChanged(appId);
 	}
 
 	@Override
 	public void deleteApp(String id) {
+		mRowsDeleted++;
 		Uri appUri = Uri.withAppendedPath(AppContract.Apps.CONTENT_URI, id);
 		mOps.add(ContentProviderOperation.newDelete(appUri).build());
 		Uri appVersionsUri = Uri.withAppendedPath(appUri,
 				AppContract.AppVersions.CONTENT_PATH);
 		mOps.add(ContentProviderOperation.newDelete(appVersionsUri).build());
+		mAppsStructureChanged = true;
+		mAppVersionsChanged = true;
+	}
+
+	@Override
+	public void deleteAppByGuid(String guid) {
+		if (mInSession) {
+			GuidIndex index = getAppsIndex();
+			int pos = index.find(guid);
+			if (pos >= 0 && index.isSynced(pos)) {
+				index.markSeen(pos);
+				deleteApp(String.valueOf(index.getRowId(pos)));
+			}
+			return;
+		}
+		String selection = AppContract.Apps.GUID + " = ? AND "
+				+ AppContract.Apps.SYNCED + " != 0";
+		Cursor cursor = mCr.query(AppContract.Apps.CONTENT_URI,
+				new String[] { AppContract.Apps.APP_ID }, selection,
+				new String[] { guid }, null);
+		try {
+			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor
+					.moveToNext()) {
+				deleteApp(cursor.getString(0));
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Override
+	public void deleteAppVersionByGuid(String guid) {
+		String selection = AppContract.AppVersions.GUID + " = ? AND "
+				+ AppContract.AppVersions.SYNCED + " != 0";
+		mOps.add(ContentProviderOperation
+				.newDelete(AppContract.AppVersions.CONTENT_URI)
+				.withSelection(selection, new String[] { guid }).build());
+		mAppVersionsChanged = true;
+		// app of version is not known here
+		mAppsStructureChanged = true;
 	}
 
 }
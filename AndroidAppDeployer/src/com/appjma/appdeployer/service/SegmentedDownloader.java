@@ -0,0 +1,660 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+
+/**
+ * Downloads file over several HTTP Range requests in parallel.
+ *
+ * Data is transferred from response streams straight to {@link FileChannel}
+ * at segment positions. Progress of segments is saved next to file, so
+ * download interrupted by network loss or process death continues where it
+ * stopped if server still returns the same entity.
+ *
+ * Servers that do not support ranges get single, not resumable connection.
+ *
+ * Optional digest of file is computed during download. Single stream is
+ * hashed as it is received; segments are hashed in file order as soon as
+ * contiguous beginning of file is downloaded, from pages that were just
+ * written, so only data of the last moments is hashed after download ends.
+ */
+public class SegmentedDownloader {
+
+	public static class Options {
+		private int mMaxSegments = 4;
+		private long mMinSegmentBytes = 256 * 1024;
+		private int mMaxRetries = 5;
+		private long mRetryDelayMs = 1000;
+		private long mStateIntervalMs = 1000;
+
+		/**
+		 * Maximal number of parallel connections
+		 */
+		public Options setMaxSegments(int maxSegments) {
+			mMaxSegments = maxSegments;
+			return this;
+		}
+
+		/**
+		 * Segments are not created nor split below this size
+		 */
+		public Options setMinSegmentBytes(long minSegmentBytes) {
+			mMinSegmentBytes = minSegmentBytes;
+			return this;
+		}
+
+		/**
+		 * Number of consecutive failures of segment without any progress
+		 * after which download fails
+		 */
+		public Options setMaxRetries(int maxRetries) {
+			mMaxRetries = maxRetries;
+			return this;
+		}
+
+		public Options setRetryDelayMs(long retryDelayMs) {
+			mRetryDelayMs = retryDelayMs;
+			return this;
+		}
+
+		/**
+		 * How often downloaded data is flushed and progress saved for resume
+		 */
+		public Options setStateIntervalMs(long stateIntervalMs) {
+			mStateIntervalMs = stateIntervalMs;
+			return this;
+		}
+	}
+
+	public interface ProgressListener {
+		/**
+		 * Called from downloading thread, at most once per state interval
+		 */
+		void onProgress(long bytes, long total);
+	}
+
+	/**
+	 * Server returned status code that was not expected
+	 */
+	public static class WrongStatusCode extends IOException {
+		private static final long serialVersionUID = 1L;
+		private final HttpResponse mResponse;
+
+		public WrongStatusCode(HttpResponse response) {
+			super(String.format("Wrong status code: %d", response
+					.getStatusLine().getStatusCode()));
+			mResponse = response;
+		}
+
+		public HttpResponse getResponse() {
+			return mResponse;
+		}
+
+		public int getStatusCode() {
+			return mResponse.getStatusLine().getStatusCode();
+		}
+	}
+
+	private static final String STATE_SUFFIX = ".segments";
+	private static final String STATE_URL = "url";
+	private static final String STATE_LENGTH = "length";
+	private static final String STATE_VALIDATOR = "validator";
+	private static final String STATE_SEGMENTS = "segments";
+	private static final long TRANSFER_BYTES = 64 * 1024;
+
+	/**
+	 * Hashes file in order as it is filled
+	 */
+	private static class DigestFollower {
+		private final MessageDigest mDigest;
+		private final ByteBuffer mBuffer = ByteBuffer
+				.allocate((int) TRANSFER_BYTES);
+		private long mHashed;
+
+		public DigestFollower(MessageDigest digest) {
+			mDigest = digest;
+		}
+
+		public void advance(FileChannel channel, long to) throws IOException {
+			while (mHashed < to) {
+				mBuffer.clear();
+				mBuffer.limit((int) Math.min(TRANSFER_BYTES, to - mHashed));
+				int read = channel.read(mBuffer, mHashed);
+				if (read <= 0) {
+					throw new IOException("Could not read downloaded data");
+				}
+				mDigest.update(mBuffer.array(), 0, read);
+				mHashed += read;
+			}
+		}
+	}
+
+	private static class Segment {
+		private long mPosition;
+		private long mEnd;
+		private boolean mWorking;
+
+		public Segment(long position, long end) {
+			mPosition = position;
+			mEnd = end;
+		}
+
+		public synchronized long getRemaining() {
+			return mEnd - mPosition;
+		}
+	}
+
+	private final HttpClient mHttpClient;
+	private final Options mOptions;
+
+	public SegmentedDownloader(HttpClient httpClient, Options options) {
+		mHttpClient = httpClient;
+		mOptions = options;
+	}
+
+	/**
+	 * Like {@link #download(String, Header[], File, ProgressListener, MessageDigest)}
+	 * without digest
+	 */
+	public long download(String url, Header[] headers, File file,
+			ProgressListener listener) throws IOException {
+		return download(url, headers, file, listener, null);
+	}
+
+	/**
+	 * Downloads url to file, continuing previous download of the same url to
+	 * the same file if possible
+	 *
+	 * @param headers
+	 *            headers added to every request, i.e. authorization
+	 * @param digest
+	 *            if not null, updated with whole content of file
+	 * @return size of file
+	 */
+	public long download(String url, Header[] headers, File file,
+			ProgressListener listener, MessageDigest digest) throws IOException {
+		File stateFile = new File(file.getPath() + STATE_SUFFIX);
+		HttpGet probe = newRequest(url, headers);
+		probe.addHeader("Range", "bytes=0-0");
+		HttpResponse response = mHttpClient.execute(probe);
+		long length;
+		String validator;
+		try {
+			int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode == HttpStatus.SC_OK) {
+				// ranges not supported
+				stateFile.delete();
+				return downloadWhole(response, file, listener, digest);
+			}
+			if (statusCode != HttpStatus.SC_PARTIAL_CONTENT) {
+				throw new WrongStatusCode(response);
+			}
+			length = parseLength(response);
+			validator = getValidator(response);
+		} finally {
+			consumeQuietly(response);
+		}
+
+		List<Segment> segments = file.length() == length ? readState(
+				stateFile, url, length, validator) : null;
+		if (segments == null) {
+			segments = createSegments(length);
+		}
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.setLength(length);
+			FileChannel channel = randomAccessFile.getChannel();
+			DigestFollower follower = digest == null ? null
+					: new DigestFollower(digest);
+			downloadSegments(url, headers, validator, channel, segments,
+					stateFile, length, listener, follower);
+			channel.force(false);
+			if (follower != null) {
+				follower.advance(channel, length);
+			}
+		} finally {
+			randomAccessFile.close();
+		}
+		stateFile.delete();
+		return length;
+	}
+
+	private List<Segment> createSegments(long length) {
+		int count = (int) Math.max(1, Math.min(mOptions.mMaxSegments, length
+				/ mOptions.mMinSegmentBytes));
+		List<Segment> segments = new ArrayList<Segment>(count);
+		long size = length / count;
+		for (int i = 0; i < count; i++) {
+			long start = i * size;
+			long end = i == count - 1 ? length : start + size;
+			segments.add(new Segment(start, end));
+		}
+		return segments;
+	}
+
+	private void downloadSegments(String url, Header[] headers,
+			String validator, FileChannel channel, List<Segment> segments,
+			File stateFile, long length, ProgressListener listener,
+			DigestFollower follower) throws IOException {
+		ExecutorService executor = Executors
+				.newFixedThreadPool(mOptions.mMaxSegments);
+		CompletionService<Segment> completionService = new ExecutorCompletionService<Segment>(
+				executor);
+		try {
+			int running = 0;
+			for (Segment segment : segments) {
+				if (segment.getRemaining() > 0 && running < mOptions.mMaxSegments) {
+					segment.mWorking = true;
+					completionService.submit(new SegmentTask(url, headers,
+							validator, channel, segment));
+					running++;
+				}
+			}
+			while (running > 0) {
+				Future<Segment> future = completionService.poll(
+						mOptions.mStateIntervalMs, TimeUnit.MILLISECONDS);
+				// positions are taken before flush so saved state never
+				// points past data that is on disk
+				String positions = getPositions(segments);
+				channel.force(false);
+				writeState(stateFile, url, length, validator, positions);
+				if (listener != null) {
+					listener.onProgress(getDownloaded(segments, length), length);
+				}
+				if (follower != null) {
+					follower.advance(channel, getContiguous(segments, length));
+				}
+				if (future == null) {
+					continue;
+				}
+				running--;
+				future.get().mWorking = false;
+				// idle connection takes over not started segment or half of
+				// the slowest one
+				Segment next = takeWork(segments);
+				if (next != null) {
+					next.mWorking = true;
+					completionService.submit(new SegmentTask(url, headers,
+							validator, channel, next));
+					running++;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private Segment takeWork(List<Segment> segments) {
+		Segment largest = null;
+		for (Segment segment : segments) {
+			if (segment.mWorking || segment.getRemaining() <= 0) {
+				continue;
+			}
+			return segment;
+		}
+		for (Segment segment : segments) {
+			if (largest == null
+					|| segment.getRemaining() > largest.getRemaining()) {
+				largest = segment;
+			}
+		}
+		if (largest == null) {
+			return null;
+		}
+		synchronized (largest) {
+			long remaining = largest.mEnd - largest.mPosition;
+			if (remaining < 2 * mOptions.mMinSegmentBytes) {
+				return null;
+			}
+			long middle = largest.mPosition + remaining / 2;
+			Segment split = new Segment(middle, largest.mEnd);
+			largest.mEnd = middle;
+			segments.add(split);
+			return split;
+		}
+	}
+
+	/**
+	 * @return length of beginning of file that is already downloaded
+	 */
+	private static long getContiguous(List<Segment> segments, long length) {
+		long contiguous = length;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				if (segment.mPosition < segment.mEnd) {
+					contiguous = Math.min(contiguous, segment.mPosition);
+				}
+			}
+		}
+		return contiguous;
+	}
+
+	private static long getDownloaded(List<Segment> segments, long length) {
+		long remaining = 0;
+		for (Segment segment : segments) {
+			remaining += segment.getRemaining();
+		}
+		return length - remaining;
+	}
+
+	private class SegmentTask implements Callable<Segment> {
+
+		private final String mUrl;
+		private final Header[] mHeaders;
+		private final String mValidator;
+		private final FileChannel mChannel;
+		private final Segment mSegment;
+
+		public SegmentTask(String url, Header[] headers, String validator,
+				FileChannel channel, Segment segment) {
+			mUrl = url;
+			mHeaders = headers;
+			mValidator = validator;
+			mChannel = channel;
+			mSegment = segment;
+		}
+
+		@Override
+		public Segment call() throws IOException, InterruptedException {
+			int failures = 0;
+			while (mSegment.getRemaining() > 0) {
+				long before = mSegment.getRemaining();
+				try {
+					transfer();
+				} catch (WrongStatusCode e) {
+					throw e;
+				} catch (IOException e) {
+					if (Thread.currentThread().isInterrupted()) {
+						throw e;
+					}
+					failures = before == mSegment.getRemaining() ? failures + 1
+							: 1;
+					if (failures > mOptions.mMaxRetries) {
+						throw e;
+					}
+					Thread.sleep(mOptions.mRetryDelayMs * failures);
+				}
+			}
+			return mSegment;
+		}
+
+		private void transfer() throws IOException {
+			long position;
+			long end;
+			synchronized (mSegment) {
+				position = mSegment.mPosition;
+				end = mSegment.mEnd;
+			}
+			HttpGet request = newRequest(mUrl, mHeaders);
+			request.addHeader("Range", String.format("bytes=%d-%d", position,
+					end - 1));
+			if (mValidator != null) {
+				// whole new entity is returned if file changed
+				request.addHeader("If-Range", mValidator);
+			}
+			HttpResponse response = mHttpClient.execute(request);
+			try {
+				if (response.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT) {
+					throw new WrongStatusCode(response);
+				}
+				ReadableByteChannel source = Channels.newChannel(response
+						.getEntity().getContent());
+				while (true) {
+					long count;
+					synchronized (mSegment) {
+						count = Math.min(TRANSFER_BYTES, mSegment.mEnd
+								- mSegment.mPosition);
+					}
+					if (count <= 0) {
+						// segment was split and this part is done
+						break;
+					}
+					long transferred = mChannel.transferFrom(source, position,
+							count);
+					if (transferred <= 0) {
+						throw new IOException("Connection closed before end of segment");
+					}
+					position += transferred;
+					synchronized (mSegment) {
+						mSegment.mPosition = position;
+					}
+					if (Thread.currentThread().isInterrupted()) {
+						throw new InterruptedIOException();
+					}
+				}
+			} finally {
+				// rest of split segment should not be read
+				request.abort();
+			}
+		}
+	}
+
+	private long downloadWhole(HttpResponse response, File file,
+			ProgressListener listener, MessageDigest digest) throws IOException {
+		HttpEntity entity = response.getEntity();
+		long length = entity.getContentLength();
+		ReadableByteChannel source = Channels.newChannel(entity.getContent());
+		FileOutputStream output = new FileOutputStream(file);
+		try {
+			FileChannel channel = output.getChannel();
+			long position = 0;
+			long reportedAt = System.currentTimeMillis();
+			ByteBuffer buffer = digest == null ? null : ByteBuffer
+					.allocate((int) TRANSFER_BYTES);
+			while (true) {
+				long transferred;
+				if (buffer == null) {
+					transferred = channel.transferFrom(source, position,
+							TRANSFER_BYTES);
+				} else {
+					// bytes have to pass through memory to be hashed
+					buffer.clear();
+					transferred = source.read(buffer);
+					buffer.flip();
+					digest.update(buffer.array(), 0, buffer.limit());
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+				}
+				if (transferred <= 0) {
+					break;
+				}
+				position += transferred;
+				long now = System.currentTimeMillis();
+				if (listener != null
+						&& now - reportedAt >= mOptions.mStateIntervalMs) {
+					reportedAt = now;
+					listener.onProgress(position, length);
+				}
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedIOException();
+				}
+			}
+			if (length >= 0 && position != length) {
+				throw new IOException("Connection closed before end of file");
+			}
+			channel.force(false);
+			return position;
+		} finally {
+			output.close();
+		}
+	}
+
+	private static HttpGet newRequest(String url, Header[] headers) {
+		HttpGet request = new HttpGet(url);
+		if (headers != null) {
+			for (Header header : headers) {
+				request.addHeader(header);
+			}
+		}
+		return request;
+	}
+
+	private static long parseLength(HttpResponse response) throws IOException {
+		// Content-Range: bytes 0-0/1234
+		Header contentRange = response.getFirstHeader("Content-Range");
+		if (contentRange != null) {
+			String value = contentRange.getValue();
+			int slash = value.lastIndexOf('/');
+			if (slash >= 0) {
+				try {
+					return Long.parseLong(value.substring(slash + 1).trim());
+				} catch (NumberFormatException ignore) {
+				}
+			}
+		}
+		throw new IOException("Server did not return length of file");
+	}
+
+	private static String getValidator(HttpResponse response) {
+		Header etag = response.getFirstHeader("ETag");
+		if (etag != null && !etag.getValue().startsWith("W/")) {
+			// weak etags could not be used in If-Range
+			return etag.getValue();
+		}
+		Header lastModified = response.getFirstHeader("Last-Modified");
+		return lastModified == null ? null : lastModified.getValue();
+	}
+
+	private static List<Segment> readState(File stateFile, String url,
+			long length, String validator) {
+		if (validator == null || !stateFile.exists()) {
+			// without validator server could return different file
+			return null;
+		}
+		Properties state = new Properties();
+		try {
+			FileInputStream input = new FileInputStream(stateFile);
+			try {
+				state.load(input);
+			} finally {
+				input.close();
+			}
+			if (!url.equals(state.getProperty(STATE_URL))
+					|| !String.valueOf(length).equals(
+							state.getProperty(STATE_LENGTH))
+					|| !validator.equals(state.getProperty(STATE_VALIDATOR))) {
+				return null;
+			}
+			List<Segment> segments = new ArrayList<Segment>();
+			for (String segment : state.getProperty(STATE_SEGMENTS, "")
+					.split(",")) {
+				String[] positions = segment.split("-");
+				if (positions.length != 2) {
+					return null;
+				}
+				segments.add(new Segment(Long.parseLong(positions[0]), Long
+						.parseLong(positions[1])));
+			}
+			return segments;
+		} catch (IOException e) {
+			return null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static String getPositions(List<Segment> segments) {
+		StringBuilder positions = new StringBuilder();
+		for (Segment segment : segments) {
+			if (positions.length() > 0) {
+				positions.append(",");
+			}
+			synchronized (segment) {
+				positions.append(segment.mPosition).append("-")
+						.append(segment.mEnd);
+			}
+		}
+		return positions.toString();
+	}
+
+	private static void writeState(File stateFile, String url, long length,
+			String validator, String positions) throws IOException {
+		if (validator == null) {
+			return;
+		}
+		Properties state = new Properties();
+		state.setProperty(STATE_URL, url);
+		state.setProperty(STATE_LENGTH, String.valueOf(length));
+		state.setProperty(STATE_VALIDATOR, validator);
+		state.setProperty(STATE_SEGMENTS, positions);
+		File tmp = new File(stateFile.getPath() + ".tmp");
+		FileOutputStream output = new FileOutputStream(tmp);
+		try {
+			state.store(output, null);
+			output.getFD().sync();
+		} finally {
+			output.close();
+		}
+		if (!tmp.renameTo(stateFile)) {
+			throw new IOException("Could not save download state");
+		}
+	}
+
+	private static void consumeQuietly(HttpResponse response) {
+		HttpEntity entity = response.getEntity();
+		if (entity == null) {
+			return;
+		}
+		try {
+			entity.consumeContent();
+		} catch (IOException ignore) {
+		}
+	}
+
+}
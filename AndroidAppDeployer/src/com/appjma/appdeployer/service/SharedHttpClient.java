@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.service;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+
+/**
+ * Process wide, connection pooling {@link HttpClient} shared by all
+ * {@link Downloader} instances.
+ *
+ * Connections are kept alive between sync tasks and TLS sessions are cached
+ * (also on disk) so following handshakes can be abbreviated.
+ *
+ * APK downloads use separate pool from {@link #getDownloadInstance(Context)},
+ * so segments of large file never take connections needed by syncs.
+ */
+public class SharedHttpClient {
+
+	public static class Options {
+		private int mConnectTimeoutMs = 20 * 1000;
+		private int mSocketTimeoutMs = 30 * 1000;
+		private int mHandshakeTimeoutMs = 20 * 1000;
+		private long mPoolTimeoutMs = 60 * 1000;
+		private long mDefaultKeepAliveMs = 30 * 1000;
+		private int mMaxConnectionsPerRoute = 4;
+		private int mMaxConnections = 8;
+
+		public Options setConnectTimeoutMs(int connectTimeoutMs) {
+			mConnectTimeoutMs = connectTimeoutMs;
+			return this;
+		}
+
+		public Options setSocketTimeoutMs(int socketTimeoutMs) {
+			mSocketTimeoutMs = socketTimeoutMs;
+			return this;
+		}
+
+		public Options setHandshakeTimeoutMs(int handshakeTimeoutMs) {
+			mHandshakeTimeoutMs = handshakeTimeoutMs;
+			return this;
+		}
+
+		public Options setPoolTimeoutMs(long poolTimeoutMs) {
+			mPoolTimeoutMs = poolTimeoutMs;
+			return this;
+		}
+
+		/**
+		 * Keep alive time used when server does not send Keep-Alive header
+		 */
+		public Options setDefaultKeepAliveMs(long defaultKeepAliveMs) {
+			mDefaultKeepAliveMs = defaultKeepAliveMs;
+			return this;
+		}
+
+		public Options setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+			mMaxConnectionsPerRoute = maxConnectionsPerRoute;
+			return this;
+		}
+
+		public Options setMaxConnections(int maxConnections) {
+			mMaxConnections = maxConnections;
+			return this;
+		}
+	}
+
+	public static class Metrics {
+		private final AtomicLong mRequests = new AtomicLong();
+		private final AtomicLong mConnections = new AtomicLong();
+		private final AtomicLong mSecureConnections = new AtomicLong();
+		private final AtomicLong mSecureConnectNanos = new AtomicLong();
+
+		public long getRequests() {
+			return mRequests.get();
+		}
+
+		/**
+		 * @return number of opened (not reused) connections
+		 */
+		public long getConnections() {
+			return mConnections.get();
+		}
+
+		/**
+		 * @return part of requests that were sent over already opened
+		 *         connection
+		 */
+		public float getConnectionReuseRatio() {
+			long requests = mRequests.get();
+			if (requests == 0) {
+				return 0.0f;
+			}
+			return Math.max(0.0f, 1.0f - (float) mConnections.get() / requests);
+		}
+
+		/**
+		 * @return average time of opening secure connection (TCP connect and
+		 *         TLS handshake)
+		 */
+		public long getAverageHandshakeMs() {
+			long handshakes = mSecureConnections.get();
+			if (handshakes == 0) {
+				return 0;
+			}
+			return mSecureConnectNanos.get() / handshakes / 1000000;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"requests: %d, connections: %d, reuse ratio: %.2f, "
+							+ "handshakes: %d, avg handshake: %d ms",
+					getRequests(), getConnections(),
+					getConnectionReuseRatio(), mSecureConnections.get(),
+					getAverageHandshakeMs());
+		}
+	}
+
+	private static class MeteredSocketFactory implements LayeredSocketFactory {
+
+		private final SocketFactory mSocketFactory;
+		private final Metrics mMetrics;
+		private final boolean mSecure;
+
+		public MeteredSocketFactory(SocketFactory socketFactory,
+				Metrics metrics, boolean secure) {
+			mSocketFactory = socketFactory;
+			mMetrics = metrics;
+			mSecure = secure;
+		}
+
+		@Override
+		public Socket createSocket() throws IOException {
+			return mSocketFactory.createSocket();
+		}
+
+		@Override
+		public Socket connectSocket(Socket sock, String host, int port,
+				InetAddress localAddress, int localPort, HttpParams params)
+				throws IOException, UnknownHostException,
+				ConnectTimeoutException {
+			long start = System.nanoTime();
+			Socket socket = mSocketFactory.connectSocket(sock, host, port,
+					localAddress, localPort, params);
+			mMetrics.mConnections.incrementAndGet();
+			if (mSecure) {
+				mMetrics.mSecureConnections.incrementAndGet();
+				mMetrics.mSecureConnectNanos.addAndGet(System.nanoTime()
+						- start);
+			}
+			return socket;
+		}
+
+		@Override
+		public boolean isSecure(Socket sock) throws IllegalArgumentException {
+			return mSocketFactory.isSecure(sock);
+		}
+
+		@Override
+		public Socket createSocket(Socket socket, String host, int port,
+				boolean autoClose) throws IOException, UnknownHostException {
+			checkState(mSocketFactory instanceof LayeredSocketFactory);
+			long start = System.nanoTime();
+			Socket layered = ((LayeredSocketFactory) mSocketFactory)
+					.createSocket(socket, host, port, autoClose);
+			mMetrics.mSecureConnections.incrementAndGet();
+			mMetrics.mSecureConnectNanos.addAndGet(System.nanoTime() - start);
+			return layered;
+		}
+	}
+
+	private static Options sOptions = new Options();
+	private static Options sDownloadOptions = new Options()
+			.setMaxConnectionsPerRoute(4).setMaxConnections(4);
+	private static final Metrics sMetrics = new Metrics();
+	private static HttpClient sHttpClient;
+	private static HttpClient sDownloadHttpClient;
+
+	/**
+	 * Should be called before first {@link #getInstance(Context)}
+	 */
+	public static synchronized void setOptions(Options options) {
+		checkNotNull(options);
+		checkState(sHttpClient == null,
+				"Options could not be changed after client is created");
+		sOptions = options;
+	}
+
+	/**
+	 * Should be called before first {@link #getDownloadInstance(Context)}
+	 */
+	public static synchronized void setDownloadOptions(Options options) {
+		checkNotNull(options);
+		checkState(sDownloadHttpClient == null,
+				"Options could not be changed after client is created");
+		sDownloadOptions = options;
+	}
+
+	public static Metrics getMetrics() {
+		return sMetrics;
+	}
+
+	public static synchronized HttpClient getInstance(Context context) {
+		if (sHttpClient == null) {
+			sHttpClient = create(context, sOptions, true);
+		}
+		return sHttpClient;
+	}
+
+	/**
+	 * @return client with its own connection pool used to download APK files
+	 */
+	public static synchronized HttpClient getDownloadInstance(Context context) {
+		if (sDownloadHttpClient == null) {
+			sDownloadHttpClient = create(context, sDownloadOptions, false);
+		}
+		return sDownloadHttpClient;
+	}
+
+	/**
+	 * @param syncs
+	 *            responses are reported to {@link SyncBackoff}, so failures
+	 *            of APK downloads do not back off syncs
+	 */
+	private static HttpClient create(Context context, final Options options,
+			boolean syncs) {
+		Context appContext = context.getApplicationContext();
+
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+		HttpConnectionParams.setConnectionTimeout(params,
+				options.mConnectTimeoutMs);
+		HttpConnectionParams.setSoTimeout(params, options.mSocketTimeoutMs);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		ConnManagerParams.setTimeout(params, options.mPoolTimeoutMs);
+		ConnManagerParams.setMaxTotalConnections(params,
+				options.mMaxConnections);
+		ConnManagerParams.setMaxConnectionsPerRoute(params,
+				new ConnPerRouteBean(options.mMaxConnectionsPerRoute));
+
+		SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", new MeteredSocketFactory(
+				PlainSocketFactory.getSocketFactory(), sMetrics, false), 80));
+		SocketFactory sslSocketFactory = SSLCertificateSocketFactory
+				.getHttpSocketFactory(options.mHandshakeTimeoutMs,
+						new SSLSessionCache(appContext));
+		schemeRegistry.register(new Scheme("https", new MeteredSocketFactory(
+				sslSocketFactory, sMetrics, true), 443));
+
+		DefaultHttpClient httpClient = new DefaultHttpClient(
+				new ThreadSafeClientConnManager(params, schemeRegistry),
+				params);
+		httpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+			private final ConnectionKeepAliveStrategy mDefault = new DefaultConnectionKeepAliveStrategy();
+
+			@Override
+			public long getKeepAliveDuration(HttpResponse response,
+					HttpContext context) {
+				long duration = mDefault.getKeepAliveDuration(response,
+						context);
+				return duration > 0 ? duration : options.mDefaultKeepAliveMs;
+			}
+		});
+		httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
+
+			@Override
+			public void process(HttpRequest request, HttpContext context)
+					throws HttpException, IOException {
+				sMetrics.mRequests.incrementAndGet();
+			}
+		});
+		if (syncs) {
+			httpClient.addResponseInterceptor(new HttpResponseInterceptor() {
+
+				@Override
+				public void process(HttpResponse response, HttpContext context)
+						throws HttpException, IOException {
+					SyncBackoff.getInstance().onResponse(response);
+				}
+			});
+		}
+		return httpClient;
+	}
+
+	private SharedHttpClient() {
+	}
+
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import android.os.SystemClock;
+
+/**
+ * Tracks failures of sync endpoints and tells when they could be requested
+ * again.
+ *
+ * After each failure endpoint waits exponentially longer time with random
+ * jitter, so devices that failed together do not retry together. After
+ * {@link Options#setOpenAfterFailures(int)} failures in a row circuit opens
+ * and no request is allowed until open time passes, then single trial request
+ * is allowed and others wait until it reports its result. Success closes
+ * circuit. Retry-After sent by server with 503 or
+ * 429 is honored by all endpoints.
+ *
+ * Only failures of server (5xx responses, timeouts and throttling) count.
+ * Lost connectivity only delays requests that are not forced, see
+ * {@link #onUnreachable(String)}, so it never opens circuit.
+ */
+public class SyncBackoff {
+
+	public static class Options {
+		private long mInitialDelayMs = 10 * 1000;
+		private long mMaxDelayMs = 30 * 60 * 1000;
+		private int mOpenAfterFailures = 5;
+		private long mOpenMs = 5 * 60 * 1000;
+
+		/**
+		 * @param initialDelayMs
+		 *            delay after first failure, it is doubled after every
+		 *            following failure
+		 */
+		public Options setInitialDelayMs(long initialDelayMs) {
+			mInitialDelayMs = initialDelayMs;
+			return this;
+		}
+
+		public Options setMaxDelayMs(long maxDelayMs) {
+			mMaxDelayMs = maxDelayMs;
+			return this;
+		}
+
+		public Options setOpenAfterFailures(int openAfterFailures) {
+			mOpenAfterFailures = openAfterFailures;
+			return this;
+		}
+
+		/**
+		 * @param openMs
+		 *            time circuit stays open before trial request, it is
+		 *            doubled when trial fails
+		 */
+		public Options setOpenMs(long openMs) {
+			mOpenMs = openMs;
+			return this;
+		}
+	}
+
+	private static class Endpoint {
+		private int mFailures;
+		private long mNextAttemptAt;
+		private int mOpenings;
+		private boolean mTrialRunning;
+	}
+
+	private static final int SC_TOO_MANY_REQUESTS = 429;
+
+	private static SyncBackoff sInstance;
+
+	public static synchronized SyncBackoff getInstance() {
+		if (sInstance == null) {
+			sInstance = new SyncBackoff(new Options());
+		}
+		return sInstance;
+	}
+
+	private final Options mOptions;
+	private final Map<String, Endpoint> mEndpoints = new HashMap<String, Endpoint>();
+	private final Random mRandom = new Random();
+	private long mRetryAfterAt;
+	private final AtomicLong mServerFailures = new AtomicLong();
+
+	public SyncBackoff(Options options) {
+		mOptions = options;
+	}
+
+	/**
+	 * Only reads state, so it could be used to show time of next retry
+	 *
+	 * @param force
+	 *            request is started by user, it is allowed during backoff but
+	 *            not when circuit is open
+	 * @return 0 if endpoint could be requested now or time to wait
+	 */
+	public synchronized long peekDelayMs(String endpoint, boolean force) {
+		long now = SystemClock.elapsedRealtime();
+		long serverDelay = Math.max(0, mRetryAfterAt - now);
+		Endpoint state = mEndpoints.get(endpoint);
+		if (state == null) {
+			return serverDelay;
+		}
+		long delay = Math.max(serverDelay, state.mNextAttemptAt - now);
+		if (!isOpen(state)) {
+			return force ? serverDelay : Math.max(0, delay);
+		}
+		if (delay <= 0 && state.mTrialRunning) {
+			// time of next attempt is known only when trial reports result
+			return mOptions.mInitialDelayMs;
+		}
+		return Math.max(0, delay);
+	}
+
+	/**
+	 * Like {@link #peekDelayMs(String, boolean)}, but when circuit is open and
+	 * 0 is returned, request takes the single trial slot. Request that was
+	 * allowed has to report {@link #onSuccess(String)},
+	 * {@link #onFailure(String)} or {@link #onAbandoned(String)}.
+	 */
+	public synchronized long startRequest(String endpoint, boolean force) {
+		long delay = peekDelayMs(endpoint, force);
+		Endpoint state = mEndpoints.get(endpoint);
+		if (delay == 0 && state != null && isOpen(state)) {
+			state.mTrialRunning = true;
+		}
+		return delay;
+	}
+
+	public synchronized boolean isOpen(String endpoint) {
+		Endpoint state = mEndpoints.get(endpoint);
+		return state != null && isOpen(state);
+	}
+
+	public synchronized void onSuccess(String endpoint) {
+		mEndpoints.remove(endpoint);
+	}
+
+	public synchronized void onFailure(String endpoint) {
+		Endpoint state = mEndpoints.get(endpoint);
+		if (state == null) {
+			state = new Endpoint();
+			mEndpoints.put(endpoint, state);
+		}
+		state.mTrialRunning = false;
+		state.mFailures++;
+		long delay;
+		if (isOpen(state)) {
+			delay = Math.min(mOptions.mMaxDelayMs,
+					mOptions.mOpenMs << Math.min(state.mOpenings, 20));
+			state.mOpenings++;
+		} else {
+			delay = Math.min(mOptions.mMaxDelayMs, mOptions.mInitialDelayMs
+					<< Math.min(state.mFailures - 1, 20));
+		}
+		// equal jitter: at least half of delay, so retries stay spread
+		delay = delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+		state.mNextAttemptAt = SystemClock.elapsedRealtime() + delay;
+	}
+
+	/**
+	 * Server could not be reached, e.g. device is offline. Requests that are
+	 * not forced wait initial delay, failures are not counted, so user could
+	 * refresh as soon as connectivity returns.
+	 */
+	public synchronized void onUnreachable(String endpoint) {
+		Endpoint state = mEndpoints.get(endpoint);
+		if (state == null) {
+			state = new Endpoint();
+			mEndpoints.put(endpoint, state);
+		}
+		state.mTrialRunning = false;
+		if (isOpen(state)) {
+			// time of next trial is kept
+			return;
+		}
+		long delay = mOptions.mInitialDelayMs;
+		delay = delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+		state.mNextAttemptAt = Math.max(state.mNextAttemptAt,
+				SystemClock.elapsedRealtime() + delay);
+	}
+
+	/**
+	 * Request ended without telling anything about server, e.g. because of
+	 * authorization problem, so it only gives back trial slot
+	 */
+	public synchronized void onAbandoned(String endpoint) {
+		Endpoint state = mEndpoints.get(endpoint);
+		if (state != null) {
+			state.mTrialRunning = false;
+		}
+	}
+
+	/**
+	 * Counts server failures and remembers Retry-After header of 503 and 429
+	 * responses
+	 */
+	public void onResponse(HttpResponse response) {
+		int statusCode = response.getStatusLine().getStatusCode();
+		long delay = 0;
+		if (statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE
+				|| statusCode == SC_TOO_MANY_REQUESTS) {
+			Header header = response.getFirstHeader("Retry-After");
+			if (header != null) {
+				delay = parseRetryAfterMs(header.getValue());
+			}
+		}
+		if (statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR || delay > 0) {
+			mServerFailures.incrementAndGet();
+		}
+		if (delay <= 0) {
+			return;
+		}
+		delay = Math.min(delay, mOptions.mMaxDelayMs);
+		synchronized (this) {
+			mRetryAfterAt = Math.max(mRetryAfterAt,
+					SystemClock.elapsedRealtime() + delay);
+		}
+	}
+
+	/**
+	 * Counts request that timed out waiting for server
+	 */
+	public void onTimeout() {
+		mServerFailures.incrementAndGet();
+	}
+
+	/**
+	 * @return number of server failures seen so far, request that failed
+	 *         while it grew is reported by {@link #onFailure(String)}
+	 */
+	public long getServerFailures() {
+		return mServerFailures.get();
+	}
+
+	private static long parseRetryAfterMs(String value) {
+		value = value.trim();
+		try {
+			return Long.parseLong(value) * 1000;
+		} catch (NumberFormatException e) {
+			// could be http date
+		}
+		try {
+			return DateUtils.parseDate(value).getTime()
+					- System.currentTimeMillis();
+		} catch (DateParseException e) {
+			return 0;
+		}
+	}
+
+	private boolean isOpen(Endpoint state) {
+		return state.mFailures >= mOptions.mOpenAfterFailures;
+	}
+
+	@Override
+	public synchronized String toString() {
+		long now = SystemClock.elapsedRealtime();
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String, Endpoint> entry : mEndpoints.entrySet()) {
+			Endpoint state = entry.getValue();
+			builder.append(String.format(
+					"%s: %d failures, %s, retry in %d ms; ", entry.getKey(),
+					state.mFailures, isOpen(state) ? (state.mTrialRunning
+							? "open, trial running" : "open") : "closed",
+					Math.max(0, state.mNextAttemptAt - now)));
+		}
+		builder.append(String.format("retry after: %d ms",
+				Math.max(0, mRetryAfterAt - now)));
+		return builder.toString();
+	}
+
+}
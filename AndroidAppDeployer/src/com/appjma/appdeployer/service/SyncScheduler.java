@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.service;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+/**
+ * Makes priorities of syncs effective although sync requests are handled one
+ * at a time in order they were sent.
+ *
+ * Requests are noted by {@link #onRequested(Uri, int)} when they are sent to
+ * service, so running sync knows that more important request waits behind it.
+ * Long syncs call {@link Ticket#shouldYield()} from their coordinating thread
+ * between pages. If it returns true sync stops, keeps what it already wrote
+ * and is sent again, so it continues after waiting request. Screen that user
+ * looks at does not wait for whole background sync.
+ */
+public class SyncScheduler {
+
+	/**
+	 * Periodic or automatic syncs
+	 */
+	public static final int PRIORITY_BACKGROUND = 0;
+	/**
+	 * Syncs started by user, e.g. refresh
+	 */
+	public static final int PRIORITY_USER = 1;
+	/**
+	 * Syncs of data shown on screen
+	 */
+	public static final int PRIORITY_VISIBLE = 2;
+
+	private static final int PRIORITIES = 3;
+
+	/**
+	 * Requests that were dropped by service without being handled, e.g.
+	 * because of missing network, are forgotten after this time
+	 */
+	private static final long PENDING_EXPIRY_MS = 60 * 1000;
+
+	private static class Pending {
+		private int mPriority;
+		private long mRequestedAt;
+	}
+
+	public class Ticket {
+		private final Uri mUri;
+		private final int mPriority;
+
+		private Ticket(Uri uri, int priority) {
+			mUri = uri;
+			mPriority = priority;
+		}
+
+		public int getPriority() {
+			return mPriority;
+		}
+
+		/**
+		 * Should be called only by thread that coordinates sync, so workers
+		 * of sync are not left waiting
+		 *
+		 * @return true if request of higher priority waits and sync should
+		 *         stop at this point
+		 */
+		public boolean shouldYield() {
+			synchronized (SyncScheduler.this) {
+				if (!hasPendingAbove(mPriority, mUri)) {
+					return false;
+				}
+				mMetrics.mYields++;
+				return true;
+			}
+		}
+	}
+
+	public static class Metrics {
+		private final long[] mTasks = new long[PRIORITIES];
+		private final long[] mWaitMs = new long[PRIORITIES];
+		private final long[] mMaxWaitMs = new long[PRIORITIES];
+		private long mYields;
+
+		private Metrics() {
+		}
+
+		private Metrics(Metrics metrics) {
+			System.arraycopy(metrics.mTasks, 0, mTasks, 0, PRIORITIES);
+			System.arraycopy(metrics.mWaitMs, 0, mWaitMs, 0, PRIORITIES);
+			System.arraycopy(metrics.mMaxWaitMs, 0, mMaxWaitMs, 0, PRIORITIES);
+			mYields = metrics.mYields;
+		}
+
+		public long getTasks(int priority) {
+			return mTasks[priority];
+		}
+
+		/**
+		 * @return average time that request of priority waited in service
+		 *         queue before it started
+		 */
+		public long getAverageWaitMs(int priority) {
+			long tasks = mTasks[priority];
+			return tasks == 0 ? 0 : mWaitMs[priority] / tasks;
+		}
+
+		public long getMaxWaitMs(int priority) {
+			return mMaxWaitMs[priority];
+		}
+
+		/**
+		 * @return number of times running sync stopped for request of higher
+		 *         priority
+		 */
+		public long getYields() {
+			return mYields;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("visible: %s, user: %s, background: %s, "
+					+ "yields: %d", toString(PRIORITY_VISIBLE),
+					toString(PRIORITY_USER), toString(PRIORITY_BACKGROUND),
+					mYields);
+		}
+
+		private String toString(int priority) {
+			return String.format("%d tasks waited %d ms avg, %d ms max",
+					getTasks(priority), getAverageWaitMs(priority),
+					getMaxWaitMs(priority));
+		}
+	}
+
+	private final Map<Uri, Pending> mPending = new HashMap<Uri, Pending>();
+	private final Metrics mMetrics = new Metrics();
+
+	/**
+	 * Notes request that was sent to service and waits to be handled
+	 */
+	public synchronized void onRequested(Uri uri, int priority) {
+		long now = SystemClock.elapsedRealtime();
+		Pending pending = mPending.get(uri);
+		if (pending == null || now - pending.mRequestedAt > PENDING_EXPIRY_MS) {
+			pending = new Pending();
+			pending.mRequestedAt = now;
+			mPending.put(uri, pending);
+		}
+		pending.mPriority = Math.max(pending.mPriority, priority);
+	}
+
+	/**
+	 * Forgets request that service decided not to handle, e.g. because data
+	 * is fresh
+	 */
+	public synchronized void onSkipped(Uri uri) {
+		mPending.remove(uri);
+	}
+
+	/**
+	 * Called when service starts to handle request
+	 *
+	 * @param priority
+	 *            priority sent with request, it is raised if the same uri was
+	 *            requested with higher one
+	 */
+	public synchronized Ticket start(Uri uri, int priority) {
+		Pending pending = mPending.remove(uri);
+		if (pending != null) {
+			priority = Math.max(priority, pending.mPriority);
+			long waitMs = SystemClock.elapsedRealtime() - pending.mRequestedAt;
+			mMetrics.mTasks[priority]++;
+			mMetrics.mWaitMs[priority] += waitMs;
+			mMetrics.mMaxWaitMs[priority] = Math.max(
+					mMetrics.mMaxWaitMs[priority], waitMs);
+		}
+		return new Ticket(uri, priority);
+	}
+
+	/**
+	 * @return copy of current metrics
+	 */
+	public synchronized Metrics getMetrics() {
+		return new Metrics(mMetrics);
+	}
+
+	private boolean hasPendingAbove(int priority, Uri except) {
+		long now = SystemClock.elapsedRealtime();
+		boolean found = false;
+		for (Iterator<Map.Entry<Uri, Pending>> iterator = mPending.entrySet()
+				.iterator(); iterator.hasNext();) {
+			Map.Entry<Uri, Pending> entry = iterator.next();
+			Pending pending = entry.getValue();
+			if (now - pending.mRequestedAt > PENDING_EXPIRY_MS) {
+				iterator.remove();
+			} else if (pending.mPriority > priority
+					&& !entry.getKey().equals(except)) {
+				found = true;
+			}
+		}
+		return found;
+	}
+
+}
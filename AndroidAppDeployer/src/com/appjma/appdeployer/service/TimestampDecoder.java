@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.service;
+
+import java.text.ParseException;
+import java.util.TimeZone;
+
+/**
+ * Decodes server timestamps like "Mar 3, 2013 10:15:22 AM" directly to epoch
+ * millis.
+ *
+ * Decoder does not allocate on success and does not keep any mutable state so
+ * one instance can be shared between threads.
+ */
+public class TimestampDecoder {
+
+	private static final long MILLIS_IN_SECOND = 1000L;
+	private static final long MILLIS_IN_MINUTE = 60 * MILLIS_IN_SECOND;
+	private static final long MILLIS_IN_HOUR = 60 * MILLIS_IN_MINUTE;
+	private static final long MILLIS_IN_DAY = 24 * MILLIS_IN_HOUR;
+
+	private final TimeZone mTimeZone;
+
+	public TimestampDecoder(TimeZone timeZone) {
+		mTimeZone = timeZone;
+	}
+
+	public long decode(String text) throws ParseException {
+		int length = text.length();
+		int pos = 0;
+
+		if (length < 3) {
+			throw new ParseException("Unparseable date: \"" + text + "\"", pos);
+		}
+		int month = month(text.charAt(0), text.charAt(1), text.charAt(2));
+		if (month < 0) {
+			throw new ParseException("Unparseable month: \"" + text + "\"", pos);
+		}
+		pos = skipSpaces(text, 3);
+
+		int start = pos;
+		int day = 0;
+		for (; pos < length && isDigit(text.charAt(pos)); pos++) {
+			day = day * 10 + text.charAt(pos) - '0';
+		}
+		pos = expect(text, start, pos, ',');
+		pos = skipSpaces(text, pos);
+
+		start = pos;
+		int year = 0;
+		for (; pos < length && isDigit(text.charAt(pos)); pos++) {
+			year = year * 10 + text.charAt(pos) - '0';
+		}
+		pos = expectDigits(text, start, pos);
+		pos = skipSpaces(text, pos);
+
+		start = pos;
+		int hour = 0;
+		for (; pos < length && isDigit(text.charAt(pos)); pos++) {
+			hour = hour * 10 + text.charAt(pos) - '0';
+		}
+		pos = expect(text, start, pos, ':');
+
+		start = pos;
+		int minute = 0;
+		for (; pos < length && isDigit(text.charAt(pos)); pos++) {
+			minute = minute * 10 + text.charAt(pos) - '0';
+		}
+		pos = expect(text, start, pos, ':');
+
+		start = pos;
+		int second = 0;
+		for (; pos < length && isDigit(text.charAt(pos)); pos++) {
+			second = second * 10 + text.charAt(pos) - '0';
+		}
+		pos = expectDigits(text, start, pos);
+		pos = skipSpaces(text, pos);
+
+		if (pos + 2 > length
+				|| (text.charAt(pos + 1) != 'M' && text.charAt(pos + 1) != 'm')) {
+			throw new ParseException("Unparseable am/pm: \"" + text + "\"", pos);
+		}
+		char amPm = text.charAt(pos);
+		boolean pm;
+		if (amPm == 'A' || amPm == 'a') {
+			pm = false;
+		} else if (amPm == 'P' || amPm == 'p') {
+			pm = true;
+		} else {
+			throw new ParseException("Unparseable am/pm: \"" + text + "\"", pos);
+		}
+		if (day < 1 || day > 31 || hour < 1 || hour > 12 || minute > 59
+				|| second > 59) {
+			throw new ParseException("Field out of range: \"" + text + "\"", 0);
+		}
+		hour = hour % 12 + (pm ? 12 : 0);
+
+		long local = daysFromCivil(year, month, day) * MILLIS_IN_DAY + hour
+				* MILLIS_IN_HOUR + minute * MILLIS_IN_MINUTE + second
+				* MILLIS_IN_SECOND;
+		int offset = mTimeZone.getOffset(local - mTimeZone.getRawOffset());
+		return local - offset;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static int skipSpaces(String text, int pos) {
+		int length = text.length();
+		while (pos < length && text.charAt(pos) == ' ') {
+			pos++;
+		}
+		return pos;
+	}
+
+	private static int expectDigits(String text, int start, int pos)
+			throws ParseException {
+		if (pos == start) {
+			throw new ParseException("Expected number: \"" + text + "\"", pos);
+		}
+		return pos;
+	}
+
+	private static int expect(String text, int start, int pos, char separator)
+			throws ParseException {
+		expectDigits(text, start, pos);
+		if (pos >= text.length() || text.charAt(pos) != separator) {
+			throw new ParseException("Expected '" + separator + "': \"" + text
+					+ "\"", pos);
+		}
+		return pos + 1;
+	}
+
+	/**
+	 * @return month number 1-12 or -1 if unknown
+	 */
+	private static int month(char c0, char c1, char c2) {
+		int key = (Character.toLowerCase(c0) << 16)
+				| (Character.toLowerCase(c1) << 8) | Character.toLowerCase(c2);
+		switch (key) {
+		case ('j' << 16) | ('a' << 8) | 'n':
+			return 1;
+		case ('f' << 16) | ('e' << 8) | 'b':
+			return 2;
+		case ('m' << 16) | ('a' << 8) | 'r':
+			return 3;
+		case ('a' << 16) | ('p' << 8) | 'r':
+			return 4;
+		case ('m' << 16) | ('a' << 8) | 'y':
+			return 5;
+		case ('j' << 16) | ('u' << 8) | 'n':
+			return 6;
+		case ('j' << 16) | ('u' << 8) | 'l':
+			return 7;
+		case ('a' << 16) | ('u' << 8) | 'g':
+			return 8;
+		case ('s' << 16) | ('e' << 8) | 'p':
+			return 9;
+		case ('o' << 16) | ('c' << 8) | 't':
+			return 10;
+		case ('n' << 16) | ('o' << 8) | 'v':
+			return 11;
+		case ('d' << 16) | ('e' << 8) | 'c':
+			return 12;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Days since 1970-01-01 in proleptic Gregorian calendar
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+		long y = month <= 2 ? year - 1 : year;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day
+				- 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+				+ dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.service;
+
+import java.io.IOException;
+
+import android.content.Intent;
+
+import com.google.android.gms.auth.GoogleAuthException;
+
+/**
+ * Source of OAuth tokens used to authorize API requests
+ */
+public interface TokenProvider {
+
+	public static class UnsupportedDevice extends Exception {
+		private static final long serialVersionUID = 1L;
+
+	}
+
+	/**
+	 * @param accountName
+	 *            account to authorize
+	 * @param callback
+	 *            broadcast sent when user resolves authentication problem
+	 * @return token
+	 */
+	String getToken(String accountName, Intent callback) throws IOException,
+			GoogleAuthException, UnsupportedDevice;
+
+	/**
+	 * Called when server rejected token, so it is not returned again
+	 */
+	void invalidateToken(String token);
+
+}
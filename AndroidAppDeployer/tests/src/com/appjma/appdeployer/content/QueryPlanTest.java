@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.content;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+import com.appjma.appdeployer.content.AppContract.AppVersions;
+import com.appjma.appdeployer.content.AppContract.Apps;
+
+/**
+ * Checks that loader and sync queries are served by indexes of
+ * {@link DBHelper}. Selections are built from the same contract fields as
+ * their callers.
+ */
+public class QueryPlanTest extends AndroidTestCase {
+
+	// name of database created by DBHelper
+	private static final String DB_NAME = "app.db";
+
+	private Context mContext;
+	private DBHelper mHelper;
+	private QueryPlanVerifier mVerifier;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mContext = new RenamingDelegatingContext(getContext(), "test.");
+		mContext.deleteDatabase(DB_NAME);
+		mHelper = new DBHelper(mContext);
+		mVerifier = new QueryPlanVerifier(mHelper.getWritableDatabase());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mHelper.close();
+		mContext.deleteDatabase(DB_NAME);
+		super.tearDown();
+	}
+
+	/**
+	 * AppsFragment
+	 */
+	public void testAppsList() {
+		mVerifier.verify(Apps.CONTENT_PATH, Apps.DELETED + " == 0", null,
+				Apps.UPDATED_AT, null);
+	}
+
+	/**
+	 * AppFragment and newest version triggers
+	 */
+	public void testAppVersionsOfApp() {
+		mVerifier.verify(AppVersions.CONTENT_PATH, AppVersions.APP_ID
+				+ " = ?", new String[] { "1" }, AppVersions.UPDATED_AT, null);
+		mVerifier.verify(AppVersions.CONTENT_PATH, AppVersions.APP_ID
+				+ " = ?", new String[] { "1" }, AppVersions.UPDATED_AT
+				+ " ASC", "1");
+	}
+
+	/**
+	 * Downloader.syncApps()
+	 */
+	public void testDirtyApps() {
+		mVerifier.verify(Apps.CONTENT_PATH, Apps.SYNCED + " = 0", null, null,
+				null);
+	}
+
+	/**
+	 * Downloader.downloadAllAppVersions()
+	 */
+	public void testSyncedApps() {
+		mVerifier.verify(Apps.CONTENT_PATH, Apps.GUID + " IS NOT NULL AND "
+				+ Apps.DELETED + " == 0", null, null, null);
+	}
+
+	/**
+	 * ProviderParserResult.deleteAppByGuid() and
+	 * ProviderParserResult.deleteAppVersionByGuid()
+	 */
+	public void testRowsByGuid() {
+		mVerifier.verify(Apps.CONTENT_PATH, Apps.GUID + " = ? AND "
+				+ Apps.SYNCED + " != 0", new String[] { "guid" }, null, null);
+		mVerifier.verify(AppVersions.CONTENT_PATH, AppVersions.GUID
+				+ " = ? AND " + AppVersions.SYNCED + " != 0",
+				new String[] { "guid" }, null, null);
+	}
+
+	/**
+	 * Guid index of app versions loaded by ProviderParserResult
+	 */
+	public void testAppVersionsGuidIndex() {
+		mVerifier.verify(AppVersions.CONTENT_PATH, AppVersions.APP_ID
+				+ " = ? AND " + AppVersions.GUID + " IS NOT NULL",
+				new String[] { "1" }, null, null);
+	}
+
+	/**
+	 * Downloader.findDeltaBase()
+	 */
+	public void testDeltaBase() {
+		mVerifier.verify(AppVersions.CONTENT_PATH, AppVersions.APP_ID
+				+ " = ? AND " + AppVersions.APP_VERSION_ID + " != ?",
+				new String[] { "1", "2" }, AppVersions.UPDATED_AT + " DESC",
+				null);
+	}
+
+	/**
+	 * DownloadStatus
+	 */
+	public void testVersionByDownloadId() {
+		mVerifier.verify(AppVersions.CONTENT_PATH,
+				AppVersions.DOWNLOAD_MANAGER_ID + " = ?", new String[] { "1" },
+				null, null);
+	}
+
+	public void testVerifierRejectsScan() {
+		assertTrue(QueryPlanVerifier.isFullScan("SCAN apps; "));
+		assertTrue(QueryPlanVerifier.isFullScan("SCAN TABLE apps (~1000 rows); "));
+		assertTrue(QueryPlanVerifier.isFullScan("TABLE apps; "));
+		assertTrue(QueryPlanVerifier
+				.isFullScan("SEARCH apps USING INDEX apps_synced (synced=?); "
+						+ "USE TEMP B-TREE FOR ORDER BY; "));
+		assertFalse(QueryPlanVerifier
+				.isFullScan("SEARCH TABLE apps USING INDEX apps_guid (guid=?) (~10 rows); "));
+		assertFalse(QueryPlanVerifier
+				.isFullScan("TABLE apps WITH INDEX apps_guid; "));
+	}
+
+}
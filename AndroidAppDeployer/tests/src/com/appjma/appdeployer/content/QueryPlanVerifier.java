@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.content;
+
+import junit.framework.Assert;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+
+/**
+ * Runs "EXPLAIN QUERY PLAN" on query and fails if it has to scan whole table
+ * or sort rows in temporary b-tree.
+ */
+public class QueryPlanVerifier {
+
+	private final SQLiteDatabase mDb;
+
+	public QueryPlanVerifier(SQLiteDatabase db) {
+		mDb = db;
+	}
+
+	/**
+	 * @param table
+	 *            table or join used by provider
+	 * @param selection
+	 *            selection passed to provider, "?" are bound to selectionArgs
+	 */
+	public void verify(String table, String selection,
+			String[] selectionArgs, String sortOrder, String limit) {
+		String sql = SQLiteQueryBuilder.buildQueryString(false, table, null,
+				selection, null, null, sortOrder, limit);
+		String plan = explain(sql, selectionArgs);
+		if (isFullScan(plan)) {
+			Assert.fail(String.format("Query \"%s\" is not using index: %s",
+					sql, plan));
+		}
+	}
+
+	private String explain(String sql, String[] selectionArgs) {
+		StringBuilder plan = new StringBuilder();
+		Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql,
+				selectionArgs);
+		try {
+			int detail = cursor.getColumnIndexOrThrow("detail");
+			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor
+					.moveToNext()) {
+				plan.append(cursor.getString(detail)).append("; ");
+			}
+		} finally {
+			cursor.close();
+		}
+		return plan.toString();
+	}
+
+	static boolean isFullScan(String plan) {
+		for (String step : plan.split("; ")) {
+			// "SCAN apps" on new, "SCAN TABLE apps (~1000 rows)" on 3.7 and
+			// "TABLE apps" without index on 3.6 sqlite
+			if (step.startsWith("SCAN ") && !step.contains(" USING ")) {
+				return true;
+			}
+			if (step.startsWith("TABLE ") && !step.contains(" WITH INDEX ")
+					&& !step.contains(" USING PRIMARY KEY")) {
+				return true;
+			}
+			if (step.contains("TEMP B-TREE")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
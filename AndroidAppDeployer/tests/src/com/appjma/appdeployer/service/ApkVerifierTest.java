@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import android.test.InstrumentationTestCase;
+
+/**
+ * Checks {@link ApkVerifier#verifySigned(File)} against APKs in assets of
+ * test project. Signed APKs are signed only with APK Signature Scheme v2, so
+ * they have no JAR signature to fall back to.
+ */
+public class ApkVerifierTest extends InstrumentationTestCase {
+
+	private File mFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = new File(getInstrumentation().getTargetContext()
+				.getCacheDir(), "apk_verifier_test.apk");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+		super.tearDown();
+	}
+
+	/**
+	 * Signature scheme block has only v2 pair
+	 */
+	public void testV2OnlySigned() throws IOException {
+		copyAsset("v2_only_signed.apk");
+		ApkVerifier.verifySigned(mFile);
+	}
+
+	/**
+	 * v2 pair is the last one, after verity padding pair
+	 */
+	public void testV2SignedAfterPadding() throws IOException {
+		copyAsset("v2_signed_after_padding.apk");
+		ApkVerifier.verifySigned(mFile);
+	}
+
+	public void testUnsignedRejected() throws IOException {
+		copyAsset("unsigned.apk");
+		try {
+			ApkVerifier.verifySigned(mFile);
+			fail("Unsigned APK accepted");
+		} catch (ApkVerifier.InvalidApk e) {
+			// expected
+		}
+	}
+
+	public void testTruncatedRejected() throws IOException {
+		copyAsset("v2_only_signed.apk");
+		RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+		try {
+			file.setLength(file.length() / 2);
+		} finally {
+			file.close();
+		}
+		try {
+			ApkVerifier.verifySigned(mFile);
+			fail("Truncated APK accepted");
+		} catch (ApkVerifier.InvalidApk e) {
+			// expected
+		}
+	}
+
+	private void copyAsset(String name) throws IOException {
+		InputStream input = getInstrumentation().getContext().getAssets()
+				.open(name);
+		try {
+			OutputStream output = new FileOutputStream(mFile);
+			try {
+				byte[] buffer = new byte[8 * 1024];
+				int read;
+				while ((read = input.read(buffer)) >= 0) {
+					output.write(buffer, 0, read);
+				}
+			} finally {
+				output.close();
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+}
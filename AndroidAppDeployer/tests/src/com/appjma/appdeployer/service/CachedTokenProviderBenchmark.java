@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Measures authentication path offline with {@link FakeTokenProvider}: burst
+ * of sync tasks asking for token directly and through
+ * {@link CachedTokenProvider}
+ */
+public class CachedTokenProviderBenchmark extends TestCase {
+
+	private static final String TAG = "CachedTokenProviderBenchmark";
+	private static final String ACCOUNT = "user@example.com";
+	private static final long LATENCY_MS = 50;
+	private static final int THREADS = 8;
+	private static final int REQUESTS_PER_THREAD = 20;
+
+	public void testDirect() throws Exception {
+		FakeTokenProvider source = new FakeTokenProvider(LATENCY_MS);
+		long elapsed = burst(source);
+		Log.i(TAG, String.format("direct: %d ms, %d fetches", elapsed,
+				source.getFetches()));
+		assertEquals(THREADS * REQUESTS_PER_THREAD, source.getFetches());
+	}
+
+	public void testCached() throws Exception {
+		FakeTokenProvider source = new FakeTokenProvider(LATENCY_MS);
+		CachedTokenProvider cached = new CachedTokenProvider(source,
+				new CachedTokenProvider.Options());
+		long elapsed = burst(cached);
+		Log.i(TAG, String.format("cached: %d ms, %d fetches, %s", elapsed,
+				source.getFetches(), cached.getMetrics()));
+		assertEquals(1, source.getFetches());
+	}
+
+	public void testRefreshAhead() throws Exception {
+		FakeTokenProvider source = new FakeTokenProvider(LATENCY_MS);
+		// every token is refreshed in background after first request
+		CachedTokenProvider cached = new CachedTokenProvider(source,
+				new CachedTokenProvider.Options().setLifetimeMs(60 * 1000)
+						.setRefreshAheadMs(60 * 1000));
+		cached.getToken(ACCOUNT, null);
+		long worstNanos = 0;
+		for (int i = 0; i < THREADS * REQUESTS_PER_THREAD; i++) {
+			long start = System.nanoTime();
+			cached.getToken(ACCOUNT, null);
+			worstNanos = Math.max(worstNanos, System.nanoTime() - start);
+		}
+		Log.i(TAG, String.format("refresh ahead: worst wait %.1f ms, %s",
+				worstNanos / 1000000.0, cached.getMetrics()));
+		assertTrue(worstNanos < LATENCY_MS * 1000000);
+	}
+
+	public void testInvalidate() throws Exception {
+		FakeTokenProvider source = new FakeTokenProvider(LATENCY_MS);
+		CachedTokenProvider cached = new CachedTokenProvider(source,
+				new CachedTokenProvider.Options());
+		String token = cached.getToken(ACCOUNT, null);
+		cached.invalidateToken(token);
+		assertFalse(token.equals(cached.getToken(ACCOUNT, null)));
+		assertEquals(1, source.getInvalidations());
+	}
+
+	/**
+	 * @return time of all requests in ms
+	 */
+	private static long burst(final TokenProvider provider) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			long start = SystemClock.elapsedRealtime();
+			for (int i = 0; i < THREADS; i++) {
+				futures.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						for (int j = 0; j < REQUESTS_PER_THREAD; j++) {
+							provider.getToken(ACCOUNT, null);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+			return SystemClock.elapsedRealtime() - start;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}
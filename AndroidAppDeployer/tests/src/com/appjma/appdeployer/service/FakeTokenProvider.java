@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2013 Jacek Marchwicki <jacek.marchwicki@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.appjma.appdeployer.service;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Intent;
+
+/**
+ * Returns generated tokens after given delay, so authentication path can be
+ * measured without Google Play Services and network.
+ */
+public class FakeTokenProvider implements TokenProvider {
+
+	private final long mLatencyMs;
+	private final AtomicInteger mFetches = new AtomicInteger();
+	private final AtomicInteger mInvalidations = new AtomicInteger();
+
+	/**
+	 * @param latencyMs
+	 *            time that every token request takes
+	 */
+	public FakeTokenProvider(long latencyMs) {
+		mLatencyMs = latencyMs;
+	}
+
+	@Override
+	public String getToken(String accountName, Intent callback)
+			throws InterruptedIOException {
+		try {
+			Thread.sleep(mLatencyMs);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		return String.format("fake-%s-%d", accountName,
+				mFetches.incrementAndGet());
+	}
+
+	@Override
+	public void invalidateToken(String token) {
+		mInvalidations.incrementAndGet();
+	}
+
+	/**
+	 * @return number of tokens returned
+	 */
+	public int getFetches() {
+		return mFetches.get();
+	}
+
+	public int getInvalidations() {
+		return mInvalidations.get();
+	}
+
+}